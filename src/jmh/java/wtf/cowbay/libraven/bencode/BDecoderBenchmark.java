@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BDecoderBenchmark {
+    /**
+     * krpc: a small DHT message, torrent: a torrent of about 4 MB (33000 files), mostly its pieces string
+     * and file list.
+     */
+    @Param({"krpc", "torrent"})
+    public String input;
+
+    private byte[] bytes;
+    private BDecoder decoder;
+    private BencodeReader reader;
+
+    @Setup
+    public void setup() {
+        bytes = BenchmarkData.encode(input.equals("krpc") ? BenchmarkData.krpcMessage() : BenchmarkData.torrent(33000));
+        decoder = new BDecoder(bytes);
+        reader = new BencodeReader(bytes);
+    }
+
+    @Benchmark
+    public Object decodeArray() throws IOException {
+        return new BDecoder(bytes).decode();
+    }
+
+    @Benchmark
+    public Object decodeReused() throws IOException {
+        decoder.reset(bytes);
+        return decoder.decode();
+    }
+
+    /**
+     * Walk the whole document with the reader only, which allocates nothing for array input.
+     */
+    @Benchmark
+    public long skipReused() throws IOException {
+        reader.reset(bytes);
+        reader.skipValue();
+        return reader.position();
+    }
+
+    @Benchmark
+    public Object decodeStream() throws IOException {
+        return new BDecoder(new ByteArrayInputStream(bytes)).decode();
+    }
+}
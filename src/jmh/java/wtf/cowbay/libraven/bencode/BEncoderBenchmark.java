@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BEncoderBenchmark {
+    /**
+     * deep: lists nested 500 levels, wide: a dictionary of 5000 small dictionaries.
+     */
+    @Param({"deep", "wide"})
+    public String shape;
+
+    private Object tree;
+    private ByteBuffer buf;
+    private final OutputStream sink = new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setup() {
+        tree = shape.equals("deep") ? BenchmarkData.deepTree(500) : BenchmarkData.wideTree(5000);
+        buf = ByteBuffer.allocate((int) BEncoder.encodedLength(tree));
+    }
+
+    @Benchmark
+    public ByteString encode() {
+        return BEncoder.encode(tree);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBuffer() {
+        buf.clear();
+        BEncoder.encode(tree, buf);
+        return buf;
+    }
+
+    @Benchmark
+    public void encodeStream() throws IOException {
+        BEncoder.encode(tree, sink);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import java.util.*;
+
+/**
+ * Synthetic bencode documents shared by the benchmarks.
+ */
+public class BenchmarkData {
+    /**
+     * A DHT get_peers response of about 300 bytes.
+     */
+    public static Map krpcMessage() {
+        Map args = new TreeMap();
+        args.put("id", bytes(20, 1));
+        args.put("token", bytes(8, 2));
+        args.put("nodes", bytes(26 * 8, 3));
+
+        Map msg = new TreeMap();
+        msg.put("r", args);
+        msg.put("t", "aa");
+        msg.put("y", "r");
+        return msg;
+    }
+
+    /**
+     * A torrent with <code>fileCount</code> files of 1 MiB and 256 KiB pieces. With a single file it is in
+     * single file mode.
+     */
+    public static Map torrent(int fileCount) {
+        int pieceLength = 256 * 1024;
+        long total = fileCount * (1L << 20);
+
+        Map info = new TreeMap();
+        info.put("name", "benchmark");
+        info.put("piece length", pieceLength);
+        info.put("pieces", bytes((int) (total / pieceLength) * 20, 4));
+        if (fileCount == 1) {
+            info.put("length", total);
+        } else {
+            List files = new ArrayList();
+            for (int i = 0; i < fileCount; i++) {
+                Map file = new TreeMap();
+                file.put("length", 1 << 20);
+                file.put("path", Arrays.asList("dir" + (i / 100), "file" + i + ".bin"));
+                files.add(file);
+            }
+            info.put("files", files);
+        }
+
+        Map torrent = new TreeMap();
+        torrent.put("announce", "http://tracker.example.com:6969/announce");
+        torrent.put("comment", "benchmark torrent");
+        torrent.put("creation date", 1400000000L);
+        torrent.put("info", info);
+        return torrent;
+    }
+
+    /**
+     * Lists nested <code>depth</code> levels deep, each holding a few scalars.
+     */
+    public static List deepTree(int depth) {
+        List root = new ArrayList();
+        List current = root;
+        for (int i = 0; i < depth; i++) {
+            current.add(i);
+            current.add("level" + i);
+            List child = new ArrayList();
+            current.add(child);
+            current = child;
+        }
+        return root;
+    }
+
+    /**
+     * A dictionary of <code>width</code> dictionaries with a few entries each.
+     */
+    public static Map wideTree(int width) {
+        Map root = new HashMap();
+        for (int i = 0; i < width; i++) {
+            Map child = new HashMap();
+            child.put("id", i);
+            child.put("name", "entry" + i);
+            child.put("hash", bytes(20, i));
+            root.put("key" + i, child);
+        }
+        return root;
+    }
+
+    public static byte[] bytes(int length, int seed) {
+        byte[] result = new byte[length];
+        new Random(seed).nextBytes(result);
+        return result;
+    }
+
+    public static byte[] encode(Object val) {
+        return BEncoder.encode(val).value();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.compact;
+
+import org.openjdk.jmh.annotations.*;
+import wtf.cowbay.libraven.bencode.BenchmarkData;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompactCoderBenchmark {
+    @Param({"10000"})
+    public int peers;
+
+    private byte[] compact;
+    private List<String> strings;
+    private final PeerList list = new PeerList();
+    private byte[] out;
+
+    @Setup
+    public void setup() {
+        compact = BenchmarkData.bytes(peers * 6, 5);
+        strings = CompactCoder.compact2strings(compact);
+        if (!Arrays.equals(compact, CompactCoder.strings2compact(strings))) {
+            throw new IllegalStateException("Peers don't round trip through CompactCoder");
+        }
+        out = new byte[compact.length];
+    }
+
+    @Benchmark
+    public List<String> decode() {
+        return CompactCoder.compact2strings(compact);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return CompactCoder.strings2compact(strings);
+    }
+
+    @Benchmark
+    public byte[] roundTrip() {
+        return CompactCoder.strings2compact(CompactCoder.compact2strings(compact));
+    }
+
+    /**
+     * Round trip through a reused {@link PeerList}, which doesn't allocate.
+     */
+    @Benchmark
+    public byte[] peerListRoundTrip() {
+        list.clear();
+        list.decodeIPv4(compact, 0, compact.length);
+        list.encodeIPv4(out, 0);
+        return out;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.dht;
+
+import org.openjdk.jmh.annotations.*;
+import wtf.cowbay.libraven.bencode.BDecoder;
+import wtf.cowbay.libraven.bencode.BEncoder;
+import wtf.cowbay.libraven.bencode.BenchmarkData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A get_peers response with 8 nodes, through maps and through the codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KrpcCodecBenchmark {
+    private Map map;
+    private byte[] packet;
+    private final KrpcCodec codec = new KrpcCodec();
+    private final KrpcMessage message = new KrpcMessage();
+    private final ByteBuffer out = ByteBuffer.allocate(1500);
+
+    @Setup
+    public void setup() throws IOException {
+        map = BenchmarkData.krpcMessage();
+        packet = BenchmarkData.encode(map);
+        codec.decode(packet, message);
+    }
+
+    @Benchmark
+    public Object decodeMap() throws IOException {
+        return new BDecoder(packet).decode();
+    }
+
+    @Benchmark
+    public KrpcMessage decodeCodec() throws IOException {
+        codec.decode(packet, message);
+        return message;
+    }
+
+    @Benchmark
+    public Object encodeMap() {
+        return BEncoder.encode(map);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeCodec() {
+        out.clear();
+        codec.encode(message, out);
+        return out;
+    }
+}
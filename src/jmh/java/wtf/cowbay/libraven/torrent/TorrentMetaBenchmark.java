@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import org.openjdk.jmh.annotations.*;
+import wtf.cowbay.libraven.bencode.BenchmarkData;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TorrentMetaBenchmark {
+    @Param({"1", "10000"})
+    public int files;
+
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        bytes = BenchmarkData.encode(BenchmarkData.torrent(files));
+    }
+
+    @Benchmark
+    public TorrentMeta loadBuffer() throws IOException {
+        return TorrentMeta.load(ByteBuffer.wrap(bytes));
+    }
+
+    @Benchmark
+    public TorrentMeta loadStream() throws IOException {
+        return TorrentMeta.load(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public String loadLazyInfoHash() throws IOException {
+        return LazyTorrentMeta.load(bytes).infoHash();
+    }
+}
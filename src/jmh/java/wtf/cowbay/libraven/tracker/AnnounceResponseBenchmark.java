@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.tracker;
+
+import org.openjdk.jmh.annotations.*;
+import wtf.cowbay.libraven.bencode.BDecoder;
+import wtf.cowbay.libraven.bencode.BEncoder;
+import wtf.cowbay.libraven.bencode.BenchmarkData;
+import wtf.cowbay.libraven.bencode.ByteString;
+import wtf.cowbay.libraven.compact.CompactCoder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnnounceResponseBenchmark {
+    @Param({"50"})
+    public int peers;
+
+    private byte[] response;
+    private final AnnounceResponse decoded = new AnnounceResponse();
+
+    @Setup
+    public void setup() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("complete", 120);
+        map.put("incomplete", 33);
+        map.put("interval", 1800);
+        map.put("min interval", 900);
+        map.put("peers", BenchmarkData.bytes(peers * 6, 5));
+        response = BEncoder.encode(map).value();
+    }
+
+    /**
+     * Generic decoding into a map, then compact peers to strings.
+     */
+    @Benchmark
+    public List<String> generic() throws IOException {
+        Map<?, ?> map = (Map<?, ?>) new BDecoder(response).decode();
+        return CompactCoder.compact2strings(((ByteString) map.get("peers")).value());
+    }
+
+    @Benchmark
+    public int reused() throws IOException {
+        decoded.decode(response);
+        return decoded.peers().size();
+    }
+}
@@ -17,185 +17,184 @@
 package wtf.cowbay.libraven.bencode;
 
 
+import wtf.cowbay.libraven.metrics.DecodeStats;
+import wtf.cowbay.libraven.metrics.Metrics;
+import wtf.cowbay.libraven.metrics.MetricsListener;
+
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.HashMap;
-
+import java.util.List;
+
+/**
+ * Decodes a bencoded value into a tree of {@link Long}, {@link ByteString}, {@link ArrayList} and
+ * {@link BDict} objects. Use {@link BencodeReader} directly to walk a document without building the tree.
+ * <p>
+ * While a {@link MetricsListener} is installed, every decoded value is reported with its size, time and
+ * counts of values by type; the counts are taken from the finished tree, so decoding itself is unchanged.
+ */
 public class BDecoder {
-    BufferedInputStream in;
+    private final BencodeReader reader;
+
+    private ByteString digestKey;
+    private MessageDigest digest;
 
     public BDecoder(String str) {
         this(str.getBytes());
     }
 
     public BDecoder(byte[] bytes) {
-        in = new BufferedInputStream(new ByteArrayInputStream(bytes));
+        this(new BencodeReader(bytes));
     }
 
-    public BDecoder(InputStream in) {
-        this.in = new BufferedInputStream(in);
+    /**
+     * Decode from the remaining bytes of <code>buf</code> (heap, direct or mapped).
+     */
+    public BDecoder(ByteBuffer buf) {
+        this(new BencodeReader(buf));
     }
 
+    public BDecoder(InputStream in) {
+        this(new BencodeReader(in));
+    }
 
-    private ByteString decodeString() throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int b = -1;
-
-        while ((b = in.read()) != -1) {
-            if (b - '0' < 10 && b - '0' >= 0) {
-                out.write(b);
-            } else if (b == ':') {
-                break;
-            } else {
-                throw new IllegalStateException("Wrong string format");
-            }
-        }
-
-        int strLen = Integer.parseInt(new String(out.toByteArray()));
-        int i = 0;
-        byte[] buf = new byte[strLen];
-
-        ByteBuffer outBuf = ByteBuffer.allocate(strLen);
-
-        while (i < strLen) {
-            int n = in.read(buf);
-            outBuf.put(buf, 0, n);
-            i += n;
-        }
+    public BDecoder(BencodeReader reader) {
+        this.reader = reader;
+    }
 
-        return new ByteString(outBuf.array());
+    /**
+     * Decode <code>bytes</code> next, reusing this decoder. The {@link #digestValue(String, MessageDigest)}
+     * setting is kept.
+     */
+    public void reset(byte[] bytes) {
+        reader.reset(bytes);
     }
 
-    private long decodeInteger() throws IOException {
-        if (in.read() != 'i') {
-            throw new IllegalStateException("Integer should start with 'i'");
-        }
+    public void reset(byte[] bytes, int offset, int length) {
+        reader.reset(bytes, offset, length);
+    }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int b = -1;
-        boolean firstByte = true;
-
-        while ((b = in.read()) != -1) {
-            if (b - '0' < 10 && b - '0' >= 0) {
-                firstByte = false;
-                out.write(b);
-            } else if (b == '-') {
-                if (firstByte) {
-                    firstByte = false;
-                    out.write(b);
-                } else {
-                    throw new IllegalStateException("Wrong integer format");
-                }
-            } else if (b == 'e') {
-                break;
-            } else {
-                throw new IllegalStateException("Wrong integer format");
-            }
-        }
+    /**
+     * Decode the remaining bytes of <code>buf</code> next, reusing this decoder.
+     */
+    public void reset(ByteBuffer buf) {
+        reader.reset(buf);
+    }
 
-        return Long.parseLong(out.toString());
+    /**
+     * Feed the raw bytes of the value stored under <code>key</code> in the top-level dictionary into
+     * <code>digest</code> while decoding. The bytes are hashed exactly as they appear in the input, so
+     * nothing has to be re-encoded afterwards (e.g. for computing the info-hash of a torrent).
+     *
+     * @param key    key of the top-level dictionary entry
+     * @param digest digest to be updated
+     */
+    public void digestValue(String key, MessageDigest digest) {
+        this.digestKey = new ByteString(key);
+        this.digest = digest;
     }
 
     private ArrayList decodeList() throws IOException {
-        if (in.read() != 'l') {
-            throw new IllegalStateException("List should start with 'l'");
-        }
+        reader.beginList();
 
         ArrayList list = new ArrayList();
-        int b = -1;
-        in.mark(1);
-        while ((b = in.read()) != -1) {
-            in.reset();
-            Object result;
-            switch (b) {
-                case 'i':
-                    result = decodeInteger();
-                    break;
-                case 'l':
-                    result = decodeList();
-                    break;
-                case 'd':
-                    result = decodeMap();
-                    break;
-                case 'e':
-                    in.read(); //consume the 'e'
-                    return list;
-                default:
-                    result = decodeString();
-            }
-
-            if (result != null) {
-                list.add(result);
-            }
-            in.mark(1);
+        while (reader.hasNext()) {
+            list.add(decodeValue());
         }
 
-        return list; //end of stream without encouter an 'e'. treat as end of list
+        reader.endList();
+        return list;
     }
 
-    private HashMap decodeMap() throws IOException {
-        if (in.read() != 'd') {
-            throw new IllegalStateException("Dictionary should start with 'd'");
-        }
+    private BDict decodeMap() throws IOException {
+        reader.beginDict();
+        boolean topLevel = reader.depth() == 1;
 
-        HashMap map = new HashMap();
-        int b = -1;
-        while (true) {
-            in.mark(1);
-            b = in.read();
-            if (b == -1 || b == 'e') {
-                break;
+        BDict map = new BDict();
+        while (reader.hasNext()) {
+            ByteString key = reader.readBytes();
+
+            boolean digestThis = topLevel && digest != null && key.equals(digestKey);
+            if (digestThis) {
+                reader.startDigest(digest);
             }
-            in.reset();
-
-            ByteString keyResult = decodeString();
-            String key = keyResult.toString();
-
-            in.mark(1);
-            b = in.read();
-            in.reset();
-            Object result;
-
-            switch (b) {
-                case 'i':
-                    result = decodeInteger();
-                    break;
-                case 'l':
-                    result = decodeList();
-                    break;
-                case 'd':
-                    result = decodeMap();
-                    break;
-                default:
-                    result = decodeString();
+            Object result = decodeValue();
+            if (digestThis) {
+                reader.stopDigest();
             }
 
             map.put(key, result);
         }
 
+        reader.endDict();
         return map;
     }
 
-    public Object decode() throws IOException {
-        //peek first byte
-        in.mark(1);
-        int c = in.read();
-        in.reset();
-
-        switch (c) {
-            case 'i':
-                return decodeInteger();
-            case 'l':
+    private Object decodeValue() throws IOException {
+        switch (reader.nextToken()) {
+            case INTEGER:
+                return reader.readLong();
+            case STRING:
+                return reader.readBytes();
+            case LIST:
                 return decodeList();
-            case 'd':
+            case DICT:
                 return decodeMap();
+            case EOF:
+                throw new IllegalStateException("Unexpected end of input");
             default:
-                if (c - '0' < 10) {
-                    return decodeString();
-                } else {
-                    throw new IllegalStateException("Wrong format");
-                }
+                throw new IllegalStateException("Wrong format");
+        }
+    }
+
+    public Object decode() throws IOException {
+        MetricsListener listener = Metrics.listener();
+        if (listener == null) {
+            return decodeValue();
+        }
+
+        long from = reader.position();
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = decodeValue();
+        } catch (IOException e) {
+            listener.failed(MetricsListener.Operation.DECODE, e);
+            throw e;
+        } catch (RuntimeException e) {
+            listener.failed(MetricsListener.Operation.DECODE, e);
+            throw e;
+        }
+
+        DecodeStats stats = new DecodeStats();
+        stats.nanos = System.nanoTime() - start;
+        stats.bytes = reader.position() - from;
+        count(result, 0, stats);
+        listener.decoded(stats);
+        return result;
+    }
+
+    private static void count(Object val, int depth, DecodeStats stats) {
+        if (val instanceof ByteString) {
+            stats.strings++;
+            stats.stringBytes += ((ByteString) val).length();
+        } else if (val instanceof BDict) {
+            BDict dict = (BDict) val;
+            stats.dicts++;
+            stats.maxDepth = Math.max(stats.maxDepth, depth + 1);
+            for (int i = 0; i < dict.size(); i++) {
+                count(dict.keyAt(i), depth + 1, stats);
+                count(dict.valueAt(i), depth + 1, stats);
+            }
+        } else if (val instanceof List) {
+            stats.lists++;
+            stats.maxDepth = Math.max(stats.maxDepth, depth + 1);
+            for (Object item : (List) val) {
+                count(item, depth + 1, stats);
+            }
+        } else {
+            stats.integers++;
         }
     }
 
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import java.util.*;
+
+/**
+ * A bencoded dictionary. Keys are kept as raw {@link ByteString}s, sorted by their bytes as bencode
+ * requires, in an array parallel to the values; lookups are binary searches on the bytes and
+ * {@link BEncoder} writes the entries in order without sorting them again. Keys taken from a decoded
+ * document are views over the input, no {@link String} is created for them.
+ * <p/>
+ * As a <code>Map&lt;String, Object&gt;</code>, keys read as strings of the platform charset; lookups and
+ * removals take a {@link String}, a {@link ByteString} or a <code>byte[]</code> key. Instances are not
+ * thread-safe.
+ */
+public class BDict extends AbstractMap<String, Object> {
+    private ByteString[] keys;
+    private Object[] values;
+    private int size = 0;
+    private Set<Map.Entry<String, Object>> entries;
+
+    public BDict() {
+        this(8);
+    }
+
+    public BDict(int capacity) {
+        keys = new ByteString[Math.max(capacity, 1)];
+        values = new Object[keys.length];
+    }
+
+    /**
+     * Copy of <code>map</code>, whose keys are strings, byte strings or byte arrays.
+     *
+     * @throws IllegalArgumentException if two keys have the same bytes
+     */
+    public BDict(Map<?, ?> map) {
+        this(map.size());
+        KeyValue[] sorted = new KeyValue[map.size()];
+        int n = 0;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            sorted[n++] = new KeyValue(toKey(entry.getKey()), entry.getValue());
+        }
+        Arrays.sort(sorted);
+
+        for (KeyValue kv : sorted) {
+            if (size > 0 && keys[size - 1].equals(kv.key)) {
+                throw new IllegalArgumentException("Duplicated key " + kv.key);
+            }
+            keys[size] = kv.key;
+            values[size] = kv.value;
+            size++;
+        }
+    }
+
+    private static class KeyValue implements Comparable<KeyValue> {
+        final ByteString key;
+        final Object value;
+
+        KeyValue(ByteString key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public int compareTo(KeyValue other) {
+            return key.compareTo(other.key);
+        }
+    }
+
+    private static ByteString toKey(Object key) {
+        if (key instanceof ByteString) {
+            return (ByteString) key;
+        } else if (key instanceof String) {
+            return new ByteString((String) key);
+        } else if (key instanceof byte[]) {
+            return new ByteString((byte[]) key);
+        }
+        throw new UnsupportedOperationException("Unsupported key type");
+    }
+
+    /**
+     * Index of <code>key</code>, or <code>-(insertion point) - 1</code> if absent.
+     */
+    private int indexOf(Object key) {
+        if (key instanceof String) {
+            String str = (String) key;
+            int lo = 0;
+            int hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = keys[mid].compareTo(str);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -lo - 1;
+        } else if (key instanceof ByteString || key instanceof byte[]) {
+            return Arrays.binarySearch(keys, 0, size, toKey(key));
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Key <code>i</code> in byte order.
+     */
+    public ByteString keyAt(int i) {
+        checkIndex(i);
+        return keys[i];
+    }
+
+    public Object valueAt(int i) {
+        checkIndex(i);
+        return values[i];
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("No entry " + i);
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    public Object get(Object key) {
+        int i = indexOf(key);
+        return i >= 0 ? values[i] : null;
+    }
+
+    public Object put(String key, Object value) {
+        return put(new ByteString(key), value);
+    }
+
+    /**
+     * Add or replace an entry. Keys arriving in order, as in a decoded document, are appended without
+     * searching.
+     *
+     * @return previous value of the key, or null
+     */
+    public Object put(ByteString key, Object value) {
+        int i = size == 0 || keys[size - 1].compareTo(key) < 0 ? -size - 1 : indexOf(key);
+        if (i >= 0) {
+            Object old = values[i];
+            values[i] = value;
+            return old;
+        }
+
+        i = -i - 1;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    public Object remove(Object key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        Object old = values[i];
+        removeAt(i);
+        return old;
+    }
+
+    private void removeAt(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(values, i + 1, values, i, size - i - 1);
+        size--;
+        keys[size] = null;
+        values[size] = null;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Entries in byte order of the keys. Keys are converted to strings when asked for.
+     */
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entries == null) {
+            entries = new AbstractSet<Map.Entry<String, Object>>() {
+                public int size() {
+                    return size;
+                }
+
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new Iterator<Map.Entry<String, Object>>() {
+                        private int next = 0;
+                        private int last = -1;
+
+                        public boolean hasNext() {
+                            return next < size;
+                        }
+
+                        public Map.Entry<String, Object> next() {
+                            if (next >= size) {
+                                throw new NoSuchElementException();
+                            }
+                            last = next++;
+                            return new Entry(last);
+                        }
+
+                        public void remove() {
+                            if (last < 0) {
+                                throw new IllegalStateException();
+                            }
+                            removeAt(last);
+                            next = last;
+                            last = -1;
+                        }
+                    };
+                }
+            };
+        }
+        return entries;
+    }
+
+    private class Entry implements Map.Entry<String, Object> {
+        private final int index;
+
+        Entry(int index) {
+            this.index = index;
+        }
+
+        public String getKey() {
+            return keys[index].toString();
+        }
+
+        public Object getValue() {
+            return values[index];
+        }
+
+        public Object setValue(Object value) {
+            Object old = values[index];
+            values[index] = value;
+            return old;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry other = (Map.Entry) obj;
+            Object value = getValue();
+            return getKey().equals(other.getKey()) && (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        public int hashCode() {
+            Object value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
@@ -16,152 +16,360 @@
 
 package wtf.cowbay.libraven.bencode;
 
-import java.io.ByteArrayOutputStream;
+import wtf.cowbay.libraven.metrics.Metrics;
+import wtf.cowbay.libraven.metrics.MetricsListener;
+
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
+/**
+ * Bencode encoder. Values are written straight into the destination, each byte exactly once; nested
+ * values are not encoded into intermediate buffers. Supported values are strings, byte arrays,
+ * {@link ByteString}s, integral numbers, lists and maps whose keys are strings, byte arrays or
+ * {@link ByteString}s. Dictionary entries are written in the byte order of their keys, as bencode
+ * requires; a {@link BDict} is already in that order, other maps are sorted first.
+ * <p>
+ * While a {@link MetricsListener} is installed, the length and time of every encoded value are reported.
+ */
 public class BEncoder {
+    private static final long[] POW10 = new long[19];
 
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the encoded value wouldn't fit in an array; encode it to an
+     *                                  {@link OutputStream} or a {@link ByteBuffer} instead
+     */
     public static <E> ByteString encode(E val) {
         if (val == null) {
             return null;
         }
 
-        if (val instanceof String) {
-            return _encode((String) val);
-        } else if (val instanceof ByteString) {
-            return _encode(((ByteString) val).value());
-        } else if (val instanceof byte[]) {
-            return _encode((byte[]) val);
-        } else if (val instanceof Number) {
-            if (val instanceof Float || val instanceof Double) {
-                throw new UnsupportedOperationException("Cannot be floating point number");
+        MetricsListener listener = Metrics.listener();
+        long start = listener == null ? 0 : System.nanoTime();
+        byte[] result;
+        try {
+            long length = encodedLength(val);
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Encoded value of " + length
+                        + " bytes is too large for an array, encode it to an OutputStream or a ByteBuffer");
             }
-            return _encode(((Number) val).longValue());
-        } else if (val instanceof List) {
-            return _encode((List) val);
-        } else if (val instanceof Map) {
-            return _encode((Map) val);
+            result = new byte[(int) length];
+            writeTo(val, ByteBuffer.wrap(result));
+        } catch (RuntimeException e) {
+            failed(listener, e);
+            throw e;
         }
+        if (listener != null) {
+            listener.encoded(result.length, System.nanoTime() - start);
+        }
+        return new ByteString(result);
+    }
 
-        throw new UnsupportedOperationException("Unsupported type");
+    private static void failed(MetricsListener listener, Throwable cause) {
+        if (listener != null) {
+            listener.failed(MetricsListener.Operation.ENCODE, cause);
+        }
     }
 
     /**
-     * Encode a string using bencode
+     * Encode a value into <code>out</code>. The stream is not buffered by the encoder.
      *
-     * @param val
-     * @return
+     * @param val value to be encoded
+     * @param out destination
+     * @throws IOException
      */
-    private static ByteString _encode(String val) {
-        if (val == null) {
-            return null;
+    public static void encode(Object val, final OutputStream out) throws IOException {
+        Sink sink = new Sink() {
+            void put(int b) throws IOException {
+                out.write(b);
+            }
+
+            void put(ByteString bs) throws IOException {
+                bs.writeTo(out);
+            }
+        };
+
+        MetricsListener listener = Metrics.listener();
+        if (listener == null) {
+            write(sink, val);
+            return;
         }
-        StringBuffer buf = new StringBuffer();
-        ByteString byteString = new ByteString(val);
-        buf.append(byteString.length());
-        buf.append(':');
-        ByteString result = new ByteString(buf.length() + byteString.length());
-        result.set(0, buf.toString().getBytes());
-        result.set(buf.toString().getBytes().length, byteString.value());
 
-        return result;
+        long start = System.nanoTime();
+        CountingSink counter = new CountingSink(sink);
+        try {
+            write(counter, val);
+        } catch (IOException e) {
+            failed(listener, e);
+            throw e;
+        } catch (RuntimeException e) {
+            failed(listener, e);
+            throw e;
+        }
+        listener.encoded(counter.count, System.nanoTime() - start);
     }
 
-    private static ByteString _encode(byte[] val) {
-        if (val == null) {
-            return null;
+    /**
+     * Encode a value into <code>buf</code>, starting at its position. Use {@link #encodedLength(Object)}
+     * to size the buffer.
+     *
+     * @param val value to be encoded
+     * @param buf destination
+     * @throws java.nio.BufferOverflowException if there is not enough room in <code>buf</code>
+     */
+    public static void encode(Object val, ByteBuffer buf) {
+        MetricsListener listener = Metrics.listener();
+        if (listener == null) {
+            writeTo(val, buf);
+            return;
         }
-        StringBuffer len = new StringBuffer(String.valueOf(val.length));
-        len.append(":");
-
-        ByteString result = new ByteString(len.length() + val.length);
-        result.set(0, len.toString().getBytes());
-        result.set(len.length(), val);
 
-        return result;
+        long start = System.nanoTime();
+        int from = buf.position();
+        try {
+            writeTo(val, buf);
+        } catch (RuntimeException e) {
+            failed(listener, e);
+            throw e;
+        }
+        listener.encoded(buf.position() - from, System.nanoTime() - start);
     }
 
+    private static void writeTo(Object val, final ByteBuffer buf) {
+        try {
+            write(new Sink() {
+                void put(int b) {
+                    buf.put((byte) b);
+                }
+
+                void put(ByteString bs) {
+                    bs.copyTo(buf);
+                }
+            }, val);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); //never thrown by a buffer sink
+        }
+    }
 
     /**
-     * Encode a integer using bencode
+     * Exact number of bytes <code>val</code> takes once encoded.
      *
-     * @param val
-     * @return
+     * @param val value to be encoded
+     * @return encoded length in bytes
      */
-    private static ByteString _encode(long val) {
-        StringBuffer buf = new StringBuffer();
-        buf.append('i');
-        buf.append(val);
-        buf.append('e');
+    public static long encodedLength(Object val) {
+        if (val instanceof String) {
+            return stringLength(byteLength((String) val));
+        } else if (val instanceof ByteString) {
+            return stringLength(((ByteString) val).length());
+        } else if (val instanceof byte[]) {
+            return stringLength(((byte[]) val).length);
+        } else if (val instanceof Number) {
+            return 2 + digits(toLong((Number) val));
+        } else if (val instanceof List) {
+            long len = 2;
+            for (Object obj : (List) val) {
+                if (obj != null) {
+                    len += encodedLength(obj);
+                }
+            }
+            return len;
+        } else if (val instanceof BDict) {
+            BDict dict = (BDict) val;
+            long len = 2;
+            for (int i = 0; i < dict.size(); i++) {
+                if (dict.valueAt(i) != null) {
+                    len += encodedLength(dict.keyAt(i)) + encodedLength(dict.valueAt(i));
+                }
+            }
+            return len;
+        } else if (val instanceof Map) {
+            long len = 2;
+            for (Object obj : ((Map) val).entrySet()) {
+                Map.Entry entry = (Map.Entry) obj;
+                if (entry.getValue() != null) {
+                    len += encodedLength(key(entry.getKey())) + encodedLength(entry.getValue());
+                }
+            }
+            return len;
+        }
+
+        throw new UnsupportedOperationException("Unsupported type");
+    }
+
+    private static long stringLength(int len) {
+        return digits(len) + 1 + len;
+    }
 
-        return new ByteString(buf.toString());
+    private static long toLong(Number val) {
+        if (val instanceof Float || val instanceof Double) {
+            throw new UnsupportedOperationException("Cannot be floating point number");
+        }
+        return val.longValue();
+    }
+
+    private static Object key(Object keyObj) {
+        if (keyObj instanceof String || keyObj instanceof ByteString || keyObj instanceof byte[]) {
+            return keyObj;
+        }
+        throw new UnsupportedOperationException("Unsupported key type");
     }
 
-    private static void writeByteString(ByteArrayOutputStream out, ByteString bs) {
-        if (out != null && bs != null) {
-            try {
-                out.write(bs.value());
-            } catch (IOException e) {
-                //ignore
+    private static boolean isAscii(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) >= 0x80) {
+                return false;
             }
         }
+        return true;
     }
 
     /**
-     * Encode a List using bencode. Items in list can be either string, integer, map, or another list.
-     *
-     * @param list
-     * @return
+     * Length of <code>str</code> in the platform charset. ASCII strings (most keys) are measured without
+     * converting them.
      */
-    private static ByteString _encode(List list) {
-        if (list == null || list.size() == 0) {
-            return null;
-        }
+    private static int byteLength(String str) {
+        return isAscii(str) ? str.length() : str.getBytes().length;
+    }
 
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    /**
+     * Number of characters of the decimal representation of <code>val</code>.
+     */
+    private static int digits(long val) {
+        return val < 0 ? digitCount(val) + 1 : digitCount(val);
+    }
 
-        buf.write('l');
-        for (Object obj : list) {
-            writeByteString(buf, encode(obj));
+    /**
+     * Number of decimal digits of <code>val</code>, not counting the sign.
+     */
+    private static int digitCount(long val) {
+        long neg = val < 0 ? val : -val; //negative space covers Long.MIN_VALUE
+        int n = 1;
+        while (n < POW10.length && neg <= -POW10[n]) {
+            n++;
         }
-        buf.write('e');
-        return new ByteString(buf.toString());
+        return n;
+    }
 
+    private abstract static class Sink {
+        abstract void put(int b) throws IOException;
+
+        abstract void put(ByteString bs) throws IOException;
+
+        void putLong(long val) throws IOException {
+            if (val < 0) {
+                put('-');
+            }
+            long neg = val < 0 ? val : -val;
+            for (int i = digitCount(val) - 1; i >= 0; i--) {
+                put('0' - (int) ((neg / POW10[i]) % 10));
+            }
+        }
     }
 
     /**
-     * Encode a Map using bencode. Items in list can be either string, integer, list, or another map. Key of this map should be a string.
-     *
-     * @param map
-     * @return
+     * Counts the bytes going through to another sink.
      */
-    private static ByteString _encode(Map map) {
-        if (map == null || map.size() == 0) {
-            return null;
+    private static class CountingSink extends Sink {
+        private final Sink out;
+        long count = 0;
+
+        CountingSink(Sink out) {
+            this.out = out;
         }
 
-        if (!(map instanceof SortedMap)) {
-            map = new TreeMap(map);
+        void put(int b) throws IOException {
+            count++;
+            out.put(b);
         }
 
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        void put(ByteString bs) throws IOException {
+            count += bs.length();
+            out.put(bs);
+        }
+    }
 
-        buf.write('d');
+    private static void write(Sink out, Object val) throws IOException {
+        if (val instanceof String) {
+            writeString(out, (String) val);
+        } else if (val instanceof ByteString) {
+            ByteString bs = (ByteString) val;
+            out.putLong(bs.length());
+            out.put(':');
+            out.put(bs);
+        } else if (val instanceof byte[]) {
+            byte[] bytes = (byte[]) val;
+            out.putLong(bytes.length);
+            out.put(':');
+            out.put(new ByteString(bytes));
+        } else if (val instanceof Number) {
+            out.put('i');
+            out.putLong(toLong((Number) val));
+            out.put('e');
+        } else if (val instanceof List) {
+            writeList(out, (List) val);
+        } else if (val instanceof Map) {
+            writeMap(out, (Map) val);
+        } else {
+            throw new UnsupportedOperationException("Unsupported type");
+        }
+    }
 
-        TreeSet keySet = new TreeSet(map.keySet());
-        for (Object keyObj : keySet) {
-            String key = (String) keyObj;
-            writeByteString(buf, encode(key));
+    /**
+     * Encode a string using bencode
+     */
+    private static void writeString(Sink out, String val) throws IOException {
+        if (isAscii(val)) {
+            out.putLong(val.length());
+            out.put(':');
+            for (int i = 0; i < val.length(); i++) {
+                out.put(val.charAt(i));
+            }
+        } else {
+            byte[] bytes = val.getBytes();
+            out.putLong(bytes.length);
+            out.put(':');
+            out.put(new ByteString(bytes));
+        }
+    }
 
-            Object obj = map.get(key);
-            ByteString bs = encode(obj);
-            writeByteString(buf, bs);
+    /**
+     * Encode a List using bencode. Items in list can be either string, integer, map, or another list.
+     */
+    private static void writeList(Sink out, List list) throws IOException {
+        out.put('l');
+        for (Object obj : list) {
+            if (obj != null) {
+                write(out, obj);
+            }
         }
+        out.put('e');
+    }
 
-        buf.write('e');
+    /**
+     * Encode a Map using bencode. Items in list can be either string, integer, list, or another map. Keys are
+     * written in the order of their raw bytes.
+     */
+    private static void writeMap(Sink out, Map map) throws IOException {
+        BDict dict = map instanceof BDict ? (BDict) map : new BDict(map);
 
-        return new ByteString(buf.toByteArray());
+        out.put('d');
+        for (int i = 0; i < dict.size(); i++) {
+            Object value = dict.valueAt(i);
+            if (value != null) {
+                write(out, dict.keyAt(i));
+                write(out, value);
+            }
+        }
+        out.put('e');
     }
 
 }
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Non-blocking bencode parser for input arriving in pieces, e.g. from a NIO channel. Chunks are pushed
+ * with {@link #feed(ByteBuffer)} as they arrive; the parser keeps its state between calls and reports
+ * tokens to a {@link Handler} as soon as they are complete. Nothing blocks and only a string split
+ * between chunks is buffered.
+ *
+ * <pre>
+ * BencodePushParser.TreeBuilder tree = new BencodePushParser.TreeBuilder();
+ * BencodePushParser parser = new BencodePushParser(tree);
+ * while (parser.feed(buf)) {
+ *     handle(tree.value()); //buf may hold the start of the next value
+ * }
+ * </pre>
+ *
+ * Nesting depth and string length are limited (64 levels and 16 MiB by default) so a peer can't make the
+ * parser use unbounded memory. Malformed input or exceeded limits result in an
+ * {@link IllegalStateException}; the parser must then be {@link #reset() reset}. Instances are not
+ * thread-safe.
+ */
+public class BencodePushParser {
+    public interface Handler {
+        void integer(long value) throws IOException;
+
+        /**
+         * A string value. The string may be a view over the fed buffer or over internal storage and is only
+         * valid during the call; copy it to keep it.
+         */
+        void string(ByteString value) throws IOException;
+
+        /**
+         * A dictionary key, valid during the call only as for {@link #string(ByteString)}.
+         */
+        void key(ByteString key) throws IOException;
+
+        void beginList() throws IOException;
+
+        void beginDict() throws IOException;
+
+        /**
+         * End of the innermost list or dictionary.
+         */
+        void end() throws IOException;
+    }
+
+    /**
+     * Builds each value into a tree of {@link Long}, {@link ByteString}, {@link ArrayList} and
+     * {@link BDict} objects, as {@link BDecoder} does. Strings are copied.
+     */
+    public static class TreeBuilder implements Handler {
+        private final List<Object> containers = new ArrayList<Object>();
+        private final List<ByteString> keys = new ArrayList<ByteString>();
+        private Object value;
+
+        /**
+         * Last value started; complete once {@link BencodePushParser#feed(ByteBuffer)} returned true.
+         */
+        public Object value() {
+            return value;
+        }
+
+        private void add(Object obj) {
+            int top = containers.size() - 1;
+            if (top < 0) {
+                value = obj;
+            } else if (containers.get(top) instanceof List) {
+                ((List) containers.get(top)).add(obj);
+            } else {
+                ((BDict) containers.get(top)).put(keys.get(top), obj);
+                keys.set(top, null);
+            }
+        }
+
+        /**
+         * Drop a partial value, along with {@link BencodePushParser#reset()}.
+         */
+        public void reset() {
+            containers.clear();
+            keys.clear();
+            value = null;
+        }
+
+        private void push(Object container) {
+            add(container);
+            containers.add(container);
+            keys.add(null);
+        }
+
+        public void integer(long value) {
+            add(value);
+        }
+
+        public void string(ByteString value) {
+            add(new ByteString(value.value()));
+        }
+
+        public void key(ByteString key) {
+            keys.set(keys.size() - 1, new ByteString(key.value()));
+        }
+
+        public void beginList() {
+            push(new ArrayList());
+        }
+
+        public void beginDict() {
+            push(new BDict());
+        }
+
+        public void end() {
+            containers.remove(containers.size() - 1);
+            keys.remove(keys.size() - 1);
+        }
+    }
+
+    private static final int VALUE = 0;
+    private static final int INTEGER = 1;
+    private static final int LENGTH = 2;
+    private static final int BODY = 3;
+
+    private static final byte LIST = 0;
+    private static final byte DICT_KEY = 1;
+    private static final byte DICT_VALUE = 2;
+
+    private final Handler handler;
+    private int maxDepth = 64;
+    private int maxStringLength = 16 * 1024 * 1024;
+
+    private int state = VALUE;
+    private byte[] stack = new byte[maxDepth];
+    private int depth = 0;
+    private long number;
+    private boolean negative;
+    private int digits;
+    private int length;
+    private int filled;
+    private byte[] scratch = new byte[0];
+
+    public BencodePushParser(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @throws IllegalStateException if part of a value has been fed, see {@link #isPartial()}
+     */
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("Max depth should be positive");
+        }
+        if (isPartial()) {
+            throw new IllegalStateException("Max depth can't change in the middle of a value");
+        }
+        this.stack = new byte[maxDepth];
+        this.maxDepth = maxDepth;
+    }
+
+    public void setMaxStringLength(int maxStringLength) {
+        if (maxStringLength < 0) {
+            throw new IllegalArgumentException("Max string length should not be negative");
+        }
+        this.maxStringLength = maxStringLength;
+    }
+
+    /**
+     * Forget any partial value, e.g. after an error. The handler is not told; a {@link TreeBuilder} has to be
+     * reset as well.
+     */
+    public void reset() {
+        state = VALUE;
+        depth = 0;
+    }
+
+    /**
+     * Whether part of a value has been fed but not its end, e.g. to detect a truncated value when the
+     * connection is closed.
+     */
+    public boolean isPartial() {
+        return state != VALUE || depth > 0;
+    }
+
+    /**
+     * Nesting level of the current position; 0 outside of any list or dictionary.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * Parse the remaining bytes of <code>buf</code>, stopping right after the end of a top-level value.
+     *
+     * @return true if a value has been completed, the position of <code>buf</code> being right after it;
+     *         false if every byte has been consumed and the value needs more input
+     * @throws IllegalStateException if the input is malformed or exceeds a limit
+     */
+    public boolean feed(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (state == BODY) {
+                if (readBody(buf) && valueDone()) {
+                    return true;
+                }
+                continue;
+            }
+
+            int b = buf.get() & 0xFF;
+            boolean done;
+            switch (state) {
+                case INTEGER:
+                    done = readInteger(b);
+                    break;
+                case LENGTH:
+                    done = readLength(b);
+                    break;
+                default:
+                    done = startValue(b);
+            }
+            if (done) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean startValue(int b) throws IOException {
+        if (depth > 0 && stack[depth - 1] == DICT_KEY && b != 'e' && (b < '0' || b > '9')) {
+            throw new IllegalStateException("Dictionary key should be a string");
+        }
+
+        switch (b) {
+            case 'i':
+                state = INTEGER;
+                number = 0;
+                negative = false;
+                digits = 0;
+                return false;
+            case 'l':
+                push(LIST);
+                handler.beginList();
+                return false;
+            case 'd':
+                push(DICT_KEY);
+                handler.beginDict();
+                return false;
+            case 'e':
+                if (depth == 0) {
+                    throw new IllegalStateException("Not in a list or dictionary");
+                }
+                if (stack[depth - 1] == DICT_VALUE) {
+                    throw new IllegalStateException("Missing value of dictionary key");
+                }
+                depth--;
+                handler.end();
+                return valueDone();
+            default:
+                if (b < '0' || b > '9') {
+                    throw new IllegalStateException("Wrong format");
+                }
+                state = LENGTH;
+                number = 0;
+                return readLength(b);
+        }
+    }
+
+    private void push(byte kind) {
+        if (depth == maxDepth) {
+            throw new IllegalStateException("Nesting deeper than " + maxDepth + " levels");
+        }
+        stack[depth++] = kind;
+    }
+
+    /**
+     * A value has been completed at the current depth.
+     *
+     * @return whether it is a top-level value
+     */
+    private boolean valueDone() {
+        state = VALUE;
+        if (depth == 0) {
+            return true;
+        }
+        if (stack[depth - 1] == DICT_KEY) {
+            stack[depth - 1] = DICT_VALUE;
+        } else if (stack[depth - 1] == DICT_VALUE) {
+            stack[depth - 1] = DICT_KEY;
+        }
+        return false;
+    }
+
+    private boolean readInteger(int b) throws IOException {
+        if (b == 'e') {
+            if (digits == 0) {
+                throw new IllegalStateException("Wrong integer format");
+            }
+            if (!negative) {
+                if (number == Long.MIN_VALUE) {
+                    throw new IllegalStateException("Integer overflow");
+                }
+                number = -number;
+            }
+            handler.integer(number);
+            return valueDone();
+        }
+        if (b == '-' && digits == 0 && !negative) {
+            negative = true;
+            return false;
+        }
+
+        //accumulate in negative space so Long.MIN_VALUE fits
+        int d = b - '0';
+        if (d < 0 || d > 9) {
+            throw new IllegalStateException("Wrong integer format");
+        }
+        if (number < (Long.MIN_VALUE + d) / 10) {
+            throw new IllegalStateException("Integer overflow");
+        }
+        number = number * 10 - d;
+        digits++;
+        return false;
+    }
+
+    private boolean readLength(int b) throws IOException {
+        if (b == ':') {
+            length = (int) number;
+            if (length == 0) {
+                emit(ByteString.wrap(scratch, 0, 0));
+                return valueDone();
+            }
+            state = BODY;
+            filled = 0;
+            return false;
+        }
+
+        int d = b - '0';
+        if (d < 0 || d > 9) {
+            throw new IllegalStateException("Wrong string format");
+        }
+        number = number * 10 + d;
+        if (number > maxStringLength) {
+            throw new IllegalStateException("String longer than " + maxStringLength + " bytes");
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the string is complete
+     */
+    private boolean readBody(ByteBuffer buf) throws IOException {
+        if (filled == 0 && buf.remaining() >= length) {
+            int pos = buf.position();
+            buf.position(pos + length);
+            emit(ByteString.wrap(buf, pos, length));
+            return true;
+        }
+
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, Math.min(scratch.length * 2, maxStringLength))];
+        }
+        int n = Math.min(length - filled, buf.remaining());
+        buf.get(scratch, filled, n);
+        filled += n;
+        if (filled < length) {
+            return false;
+        }
+        emit(ByteString.wrap(scratch, 0, length));
+        return true;
+    }
+
+    private void emit(ByteString str) throws IOException {
+        if (depth > 0 && stack[depth - 1] == DICT_KEY) {
+            handler.key(str);
+        } else {
+            handler.string(str);
+        }
+    }
+}
@@ -0,0 +1,735 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Pull-based bencode reader. Values are read one token at a time, so documents of any size can be walked
+ * (or skipped) without materializing them. {@link BDecoder} builds its object trees on top of this reader.
+ *
+ * <pre>
+ * reader.beginDict();
+ * while (reader.hasNext()) {
+ *     String key = reader.readString();
+ *     if (key.equals("interval")) {
+ *         interval = reader.readLong();
+ *     } else {
+ *         reader.skipValue();
+ *     }
+ * }
+ * reader.endDict();
+ * </pre>
+ *
+ * Strings read from a byte array or a {@link ByteBuffer} are views over it (see
+ * {@link ByteString#wrap(byte[], int, int)}); only stream input is copied. Array and buffer input is
+ * scanned with plain index arithmetic, stream input through an unsynchronized internal buffer.
+ * Malformed or truncated input results in an {@link IllegalStateException}.
+ * <p>
+ * A reader over a byte array or a buffer can be {@link #reset(byte[]) reset} to a new input and reused,
+ * e.g. one per thread for a stream of small messages. Together with {@link #readLong()},
+ * {@link #readKey(byte[][])} and {@link #readBytes(byte[], int)}, which don't allocate, messages can be
+ * parsed without producing garbage.
+ */
+public class BencodeReader {
+    public enum Token {
+        INTEGER, STRING, LIST, DICT, END, EOF
+    }
+
+    private Input input;
+    private int depth = 0;
+
+    public BencodeReader(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public BencodeReader(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        input = new ArrayInput(bytes, offset, offset + length);
+    }
+
+    /**
+     * Read the remaining bytes of <code>buf</code> (heap, direct or mapped). The position of
+     * <code>buf</code> is not changed.
+     */
+    public BencodeReader(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            int offset = buf.arrayOffset() + buf.position();
+            input = new ArrayInput(buf.array(), offset, offset + buf.remaining());
+        } else {
+            input = new BufferInput(buf);
+        }
+    }
+
+    /**
+     * Read the content of <code>str</code>, e.g. a value returned by {@link #readRaw()}.
+     */
+    public BencodeReader(ByteString str) {
+        if (str.array() != null) {
+            input = new ArrayInput(str.array(), str.offset(), str.offset() + str.length());
+        } else {
+            ByteBuffer buf = str.buffer().duplicate();
+            buf.limit(str.offset() + str.length()).position(str.offset());
+            input = new BufferInput(buf);
+        }
+    }
+
+    /**
+     * Read from <code>in</code>. The reader buffers the stream itself and may read past the end of the
+     * value; the stream is not closed.
+     */
+    public BencodeReader(InputStream in) {
+        input = new StreamInput(in);
+    }
+
+    public void reset(byte[] bytes) {
+        reset(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Start over on a new input, reusing the internal state of this reader. Strings read before are
+     * still valid, since they are views over the previous input.
+     */
+    public void reset(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (input instanceof ArrayInput) {
+            ((ArrayInput) input).reset(bytes, offset, offset + length);
+        } else {
+            input = new ArrayInput(bytes, offset, offset + length);
+        }
+        depth = 0;
+    }
+
+    /**
+     * Start over on the remaining bytes of <code>buf</code>. The position of <code>buf</code> is not
+     * changed.
+     */
+    public void reset(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            int offset = buf.arrayOffset() + buf.position();
+            reset(buf.array(), offset, buf.remaining());
+            return;
+        }
+        if (input instanceof BufferInput) {
+            ((BufferInput) input).reset(buf);
+        } else {
+            input = new BufferInput(buf);
+        }
+        depth = 0;
+    }
+
+    /**
+     * Type of the next token, without consuming it. {@link Token#END} is returned if the current list or
+     * dictionary ends here, {@link Token#EOF} at the end of the input.
+     */
+    public Token nextToken() throws IOException {
+        int b = input.peek();
+        switch (b) {
+            case -1:
+                return Token.EOF;
+            case 'i':
+                return Token.INTEGER;
+            case 'l':
+                return Token.LIST;
+            case 'd':
+                return Token.DICT;
+            case 'e':
+                return Token.END;
+            default:
+                if (b >= '0' && b <= '9') {
+                    return Token.STRING;
+                }
+                throw new IllegalStateException("Wrong format");
+        }
+    }
+
+    /**
+     * Whether the current list or dictionary has more elements.
+     */
+    public boolean hasNext() throws IOException {
+        Token token = nextToken();
+        return token != Token.END && token != Token.EOF;
+    }
+
+    public long readLong() throws IOException {
+        expect('i', "Integer should start with 'i'");
+
+        boolean negative = false;
+        int b = input.read();
+        if (b == '-') {
+            negative = true;
+            b = input.read();
+        }
+
+        //accumulate in negative space so Long.MIN_VALUE fits
+        long val = 0;
+        int digits = 0;
+        while (b != 'e') {
+            if (b == -1) {
+                throw new IllegalStateException("Unexpected end of input");
+            }
+            int d = b - '0';
+            if (d < 0 || d > 9) {
+                throw new IllegalStateException("Wrong integer format");
+            }
+            if (val < (Long.MIN_VALUE + d) / 10) {
+                throw new IllegalStateException("Integer overflow");
+            }
+            val = val * 10 - d;
+            digits++;
+            b = input.read();
+        }
+
+        if (digits == 0) {
+            throw new IllegalStateException("Wrong integer format");
+        }
+        if (!negative) {
+            if (val == Long.MIN_VALUE) {
+                throw new IllegalStateException("Integer overflow");
+            }
+            val = -val;
+        }
+        return val;
+    }
+
+    public ByteString readBytes() throws IOException {
+        return input.read(readLength());
+    }
+
+    /**
+     * Read a string into <code>dest</code> at <code>offset</code>, without allocating.
+     *
+     * @return length of the string
+     * @throws IllegalStateException if the string doesn't fit
+     */
+    public int readBytes(byte[] dest, int offset) throws IOException {
+        int len = readLength();
+        if (len > dest.length - offset) {
+            throw new IllegalStateException("String does not fit: " + len + " bytes");
+        }
+        input.read(dest, offset, len);
+        return len;
+    }
+
+    /**
+     * Read a string and look it up in <code>candidates</code>, without allocating. Meant for dictionary
+     * keys; the key is consumed whether or not it matches.
+     *
+     * @return index of the candidate equal to the string, or -1 if none is
+     */
+    public int readKey(byte[][] candidates) throws IOException {
+        return input.match(readLength(), candidates);
+    }
+
+    /**
+     * Read a string, decoded with the platform charset.
+     */
+    public String readString() throws IOException {
+        return readBytes().toString();
+    }
+
+    private int readLength() throws IOException {
+        int len = 0;
+        int digits = 0;
+        int b;
+        while ((b = input.read()) != ':') {
+            if (b == -1) {
+                throw new IllegalStateException("Unexpected end of input");
+            }
+            int d = b - '0';
+            if (d < 0 || d > 9) {
+                throw new IllegalStateException("Wrong string format");
+            }
+            if (len > (Integer.MAX_VALUE - d) / 10) {
+                throw new IllegalStateException("String too long");
+            }
+            len = len * 10 + d;
+            digits++;
+        }
+
+        if (digits == 0) {
+            throw new IllegalStateException("Wrong string format");
+        }
+        return len;
+    }
+
+    public void beginList() throws IOException {
+        expect('l', "List should start with 'l'");
+        depth++;
+    }
+
+    public void endList() throws IOException {
+        end();
+    }
+
+    public void beginDict() throws IOException {
+        expect('d', "Dictionary should start with 'd'");
+        depth++;
+    }
+
+    public void endDict() throws IOException {
+        end();
+    }
+
+    private void end() throws IOException {
+        if (depth == 0) {
+            throw new IllegalStateException("Not in a list or dictionary");
+        }
+        expect('e', "Expect end of list or dictionary");
+        depth--;
+    }
+
+    private void expect(int c, String message) throws IOException {
+        int b = input.read();
+        if (b != c) {
+            throw new IllegalStateException(b == -1 ? "Unexpected end of input" : message);
+        }
+    }
+
+    /**
+     * Skip the next value, including everything nested in it, without decoding it.
+     */
+    public void skipValue() throws IOException {
+        int level = 0;
+        do {
+            switch (nextToken()) {
+                case INTEGER:
+                    readLong();
+                    break;
+                case STRING:
+                    input.skip(readLength());
+                    break;
+                case LIST:
+                case DICT:
+                    input.read();
+                    level++;
+                    break;
+                case END:
+                    if (level == 0) {
+                        throw new IllegalStateException("No value to skip");
+                    }
+                    input.read();
+                    level--;
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected end of input");
+            }
+        } while (level > 0);
+    }
+
+    /**
+     * Skip the next value and return its raw bencoded bytes, e.g. to hash a dictionary exactly as it
+     * appears. The result is a view over the input; stream input is not supported.
+     */
+    public ByteString readRaw() throws IOException {
+        long from = input.position();
+        skipValue();
+        return input.raw(from);
+    }
+
+    /**
+     * Nesting level of the current position; 0 outside of any list or dictionary.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * Number of bytes consumed so far.
+     */
+    public long position() {
+        return input.position();
+    }
+
+    /**
+     * Feed every byte consumed from now on into <code>digest</code>, until {@link #stopDigest()}.
+     */
+    public void startDigest(MessageDigest digest) {
+        input.startDigest(digest);
+    }
+
+    public void stopDigest() {
+        input.stopDigest();
+    }
+
+    private abstract static class Input {
+        abstract int peek() throws IOException;
+
+        abstract int read() throws IOException;
+
+        abstract ByteString read(int len) throws IOException;
+
+        abstract void read(byte[] dest, int offset, int len) throws IOException;
+
+        /**
+         * Consume <code>len</code> bytes and return the index of the candidate equal to them, or -1.
+         */
+        abstract int match(int len, byte[][] candidates) throws IOException;
+
+        abstract void skip(long len) throws IOException;
+
+        abstract long position();
+
+        /**
+         * View over the bytes consumed since position <code>from</code>.
+         */
+        abstract ByteString raw(long from);
+
+        abstract void startDigest(MessageDigest digest);
+
+        abstract void stopDigest();
+    }
+
+    private static class ArrayInput extends Input {
+        private byte[] data;
+        private int start;
+        private int limit;
+        private int pos;
+
+        private MessageDigest digest;
+        private int digestStart;
+
+        ArrayInput(byte[] data, int offset, int limit) {
+            reset(data, offset, limit);
+        }
+
+        void reset(byte[] data, int offset, int limit) {
+            this.data = data;
+            this.start = offset;
+            this.pos = offset;
+            this.limit = limit;
+            this.digest = null;
+        }
+
+        int peek() {
+            return pos < limit ? data[pos] & 0xFF : -1;
+        }
+
+        int read() {
+            return pos < limit ? data[pos++] & 0xFF : -1;
+        }
+
+        ByteString read(int len) {
+            if (len > limit - pos) {
+                throw new IllegalStateException("Unexpected end of input");
+            }
+            ByteString result = ByteString.wrap(data, pos, len);
+            pos += len;
+            return result;
+        }
+
+        void read(byte[] dest, int offset, int len) {
+            if (len > limit - pos) {
+                throw new IllegalStateException("Unexpected end of input");
+            }
+            System.arraycopy(data, pos, dest, offset, len);
+            pos += len;
+        }
+
+        int match(int len, byte[][] candidates) {
+            if (len > limit - pos) {
+                throw new IllegalStateException("Unexpected end of input");
+            }
+            int from = pos;
+            pos += len;
+            for (int c = 0; c < candidates.length; c++) {
+                byte[] candidate = candidates[c];
+                if (candidate.length != len) {
+                    continue;
+                }
+                int i = 0;
+                while (i < len && data[from + i] == candidate[i]) {
+                    i++;
+                }
+                if (i == len) {
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        void skip(long len) {
+            if (len > limit - pos) {
+                throw new IllegalStateException("Unexpected end of input");
+            }
+            pos += len;
+        }
+
+        long position() {
+            return pos - start;
+        }
+
+        ByteString raw(long from) {
+            int rawStart = start + (int) from;
+            return ByteString.wrap(data, rawStart, pos - rawStart);
+        }
+
+        void startDigest(MessageDigest digest) {
+            this.digest = digest;
+            this.digestStart = pos;
+        }
+
+        void stopDigest() {
+            if (digest != null) {
+                digest.update(data, digestStart, pos - digestStart);
+                digest = null;
+            }
+        }
+    }
+
+    private static class BufferInput extends Input {
+        private ByteBuffer buf;
+        private int start;
+        private int limit;
+        private int pos;
+
+        private MessageDigest digest;
+        private int digestStart;
+
+        BufferInput(ByteBuffer buf) {
+            reset(buf);
+        }
+
+        void reset(ByteBuffer buf) {
+            this.buf = buf;
+            this.start = buf.position();
+            this.pos = start;
+            this.limit = buf.limit();
+            this.digest = null;
+        }
+
+        int peek() {
+            return pos < limit ? buf.get(pos) & 0xFF : -1;
+        }
+
+        int read() {
+            return pos < limit ? buf.get(pos++) & 0xFF : -1;
+        }
+
+        ByteString read(int len) {
+            if (len > limit - pos) {
+                throw new IllegalStateException("Unexpected end of input");
+            }
+            ByteString result = ByteString.wrap(buf, pos, len);
+            pos += len;
+            return result;
+        }
+
+        void read(byte[] dest, int offset, int len) {
+            if (len > limit - pos) {
+                throw new IllegalStateException("Unexpected end of input");
+            }
+            for (int i = 0; i < len; i++) {
+                dest[offset + i] = buf.get(pos + i);
+            }
+            pos += len;
+        }
+
+        int match(int len, byte[][] candidates) {
+            if (len > limit - pos) {
+                throw new IllegalStateException("Unexpected end of input");
+            }
+            int from = pos;
+            pos += len;
+            for (int c = 0; c < candidates.length; c++) {
+                byte[] candidate = candidates[c];
+                if (candidate.length != len) {
+                    continue;
+                }
+                int i = 0;
+                while (i < len && buf.get(from + i) == candidate[i]) {
+                    i++;
+                }
+                if (i == len) {
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        void skip(long len) {
+            if (len > limit - pos) {
+                throw new IllegalStateException("Unexpected end of input");
+            }
+            pos += len;
+        }
+
+        long position() {
+            return pos - start;
+        }
+
+        ByteString raw(long from) {
+            int rawStart = start + (int) from;
+            return ByteString.wrap(buf, rawStart, pos - rawStart);
+        }
+
+        void startDigest(MessageDigest digest) {
+            this.digest = digest;
+            this.digestStart = pos;
+        }
+
+        void stopDigest() {
+            if (digest != null) {
+                ByteBuffer span = buf.duplicate();
+                span.limit(pos).position(digestStart);
+                digest.update(span);
+                digest = null;
+            }
+        }
+    }
+
+    private static class StreamInput extends Input {
+        private final InputStream in;
+        private final byte[] buf = new byte[8192];
+        private int pos = 0;
+        private int limit = 0;
+        private long consumed = 0; //bytes consumed before buf
+        private byte[] scratch = new byte[64]; //keys being matched
+        private MessageDigest digest;
+
+        StreamInput(InputStream in) {
+            this.in = in;
+        }
+
+        private boolean fill() throws IOException {
+            consumed += limit;
+            pos = 0;
+            limit = 0;
+            int n;
+            do {
+                n = in.read(buf);
+            } while (n == 0);
+            if (n == -1) {
+                return false;
+            }
+            limit = n;
+            return true;
+        }
+
+        int peek() throws IOException {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            return buf[pos] & 0xFF;
+        }
+
+        int read() throws IOException {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            byte b = buf[pos++];
+            if (digest != null) {
+                digest.update(b);
+            }
+            return b & 0xFF;
+        }
+
+        ByteString read(int len) throws IOException {
+            byte[] result = new byte[len];
+            read(result, 0, len);
+            return new ByteString(result);
+        }
+
+        void read(byte[] dest, int offset, int len) throws IOException {
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, dest, offset, n);
+            pos += n;
+
+            //read the rest straight from the stream, bypassing buf
+            int i = n;
+            while (i < len) {
+                int r = in.read(dest, offset + i, len - i);
+                if (r == -1) {
+                    throw new IllegalStateException("Unexpected end of input");
+                }
+                i += r;
+                consumed += r;
+            }
+
+            if (digest != null) {
+                digest.update(dest, offset, len);
+            }
+        }
+
+        int match(int len, byte[][] candidates) throws IOException {
+            int longest = 0;
+            for (byte[] candidate : candidates) {
+                longest = Math.max(longest, candidate.length);
+            }
+            if (len > longest) {
+                skip(len);
+                return -1;
+            }
+
+            if (scratch.length < len) {
+                scratch = new byte[Math.max(len, 2 * scratch.length)];
+            }
+            read(scratch, 0, len);
+            for (int c = 0; c < candidates.length; c++) {
+                byte[] candidate = candidates[c];
+                if (candidate.length != len) {
+                    continue;
+                }
+                int i = 0;
+                while (i < len && scratch[i] == candidate[i]) {
+                    i++;
+                }
+                if (i == len) {
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        void skip(long len) throws IOException {
+            while (len > 0) {
+                if (pos == limit && !fill()) {
+                    throw new IllegalStateException("Unexpected end of input");
+                }
+                int n = (int) Math.min(len, limit - pos);
+                if (digest != null) {
+                    digest.update(buf, pos, n);
+                }
+                pos += n;
+                len -= n;
+            }
+        }
+
+        long position() {
+            return consumed + pos;
+        }
+
+        ByteString raw(long from) {
+            throw new UnsupportedOperationException("Raw values can't be read from a stream");
+        }
+
+        void startDigest(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        void stopDigest() {
+            digest = null;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binds the entries of a bencoded dictionary to an object. A schema declares its keys once, each with a
+ * {@link Field} that reads the value straight from a {@link BencodeReader} into the target, so documents
+ * are decoded without an intermediate map and without reflection. Keys are matched as raw bytes; entries
+ * not in the schema are skipped.
+ *
+ * <pre>
+ * static final BencodeSchema&lt;Peer&gt; PEER = new BencodeSchema&lt;Peer&gt;() {
+ *     protected Peer create() {
+ *         return new Peer();
+ *     }
+ * }.field(new BencodeSchema.Field&lt;Peer&gt;("ip", true) {
+ *     protected void read(BencodeReader reader, Peer peer) throws IOException {
+ *         peer.ip = reader.readString();
+ *     }
+ * }).field(new BencodeSchema.Field&lt;Peer&gt;("port", true) {
+ *     protected void read(BencodeReader reader, Peer peer) throws IOException {
+ *         peer.port = (int) reader.readLong();
+ *     }
+ * });
+ *
+ * List&lt;Peer&gt; peers = PEER.readList(reader);
+ * </pre>
+ *
+ * A schema holds no decoding state; once its fields are declared it can be shared between threads.
+ */
+public abstract class BencodeSchema<T> {
+    private static final int MAX_FIELDS = 64; //presence of the fields is tracked in a long
+
+    public abstract static class Field<T> {
+        private final String key;
+        private final boolean required;
+
+        protected Field(String key) {
+            this(key, false);
+        }
+
+        /**
+         * @param key      dictionary key
+         * @param required whether a dictionary without this key is invalid
+         */
+        protected Field(String key, boolean required) {
+            this.key = key;
+            this.required = required;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        public boolean isRequired() {
+            return required;
+        }
+
+        /**
+         * Read the value of this field, which the reader is positioned on, into <code>target</code>.
+         * Exactly one value must be consumed.
+         */
+        protected abstract void read(BencodeReader reader, T target) throws IOException;
+    }
+
+    private final List<Field<T>> fields = new ArrayList<Field<T>>();
+    private byte[][] keys = new byte[0][];
+    private long requiredMask = 0;
+
+    /**
+     * Add a field to the schema.
+     *
+     * @return this schema
+     */
+    public BencodeSchema<T> field(Field<T> field) {
+        byte[] key = field.key().getBytes();
+        for (byte[] existing : keys) {
+            if (Arrays.equals(existing, key)) {
+                throw new IllegalArgumentException("Duplicated field " + field.key());
+            }
+        }
+        if (fields.size() == MAX_FIELDS) {
+            throw new IllegalArgumentException("Too many fields");
+        }
+
+        byte[][] newKeys = new byte[keys.length + 1][];
+        System.arraycopy(keys, 0, newKeys, 0, keys.length);
+        newKeys[keys.length] = key;
+        if (field.isRequired()) {
+            requiredMask |= 1L << keys.length;
+        }
+        keys = newKeys;
+        fields.add(field);
+        return this;
+    }
+
+    /**
+     * New, empty target for {@link #read(BencodeReader)} and {@link #readList(BencodeReader)}.
+     */
+    protected abstract T create();
+
+    /**
+     * Called when a required field is missing. Throws an {@link IOException} by default.
+     */
+    protected void missing(String key) throws IOException {
+        throw new IOException("Missing field: " + key);
+    }
+
+    /**
+     * Called once every entry of a dictionary has been read into <code>target</code>, e.g. to check
+     * fields depending on each other. Does nothing by default.
+     */
+    protected void complete(T target) throws IOException {
+    }
+
+    /**
+     * Read the dictionary the reader is positioned on into <code>target</code>.
+     */
+    public void read(BencodeReader reader, T target) throws IOException {
+        long seen = 0;
+
+        reader.beginDict();
+        while (reader.hasNext()) {
+            int i = reader.readKey(keys);
+            if (i < 0) {
+                reader.skipValue();
+            } else {
+                fields.get(i).read(reader, target);
+                seen |= 1L << i;
+            }
+        }
+        reader.endDict();
+
+        long missing = requiredMask & ~seen;
+        if (missing != 0) {
+            missing(fields.get(Long.numberOfTrailingZeros(missing)).key());
+        }
+        complete(target);
+    }
+
+    /**
+     * Read the dictionary the reader is positioned on into a new target.
+     */
+    public T read(BencodeReader reader) throws IOException {
+        T target = create();
+        read(reader, target);
+        return target;
+    }
+
+    /**
+     * Read a list of dictionaries, each into a new target.
+     */
+    public List<T> readList(BencodeReader reader) throws IOException {
+        List<T> result = new ArrayList<T>();
+        reader.beginList();
+        while (reader.hasNext()) {
+            result.add(read(reader));
+        }
+        reader.endList();
+        return result;
+    }
+}
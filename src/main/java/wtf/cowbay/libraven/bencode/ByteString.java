@@ -16,45 +16,279 @@
 
 package wtf.cowbay.libraven.bencode;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 
-public class ByteString {
-    private byte[] value;
+/**
+ * A string of raw bytes. A ByteString either owns its array or is a read-only view (offset and length)
+ * over an array or a {@link ByteBuffer} shared with other views, e.g. the input of a {@link BDecoder}.
+ * ByteStrings are ordered by their bytes compared as unsigned values, the order of bencoded dictionary keys.
+ */
+public class ByteString implements Comparable<ByteString> {
+    private byte[] value;      //backing array, null if backed by a buffer
+    private ByteBuffer buffer; //backing buffer, null if backed by an array
+    private int offset;
+    private int length;
+    private boolean view;
 
     public ByteString(int size) {
-        value = new byte[size];
+        this(new byte[size]);
     }
 
     public ByteString(String str) {
-        value = str.getBytes();
+        this(str.getBytes());
     }
 
     public ByteString(byte[] v) {
         value = v;
+        length = v.length;
+    }
+
+    private ByteString(byte[] array, ByteBuffer buffer, int offset, int length) {
+        this.value = array;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.view = true;
+    }
+
+    /**
+     * Create a read-only view over <code>length</code> bytes of <code>array</code> starting at
+     * <code>offset</code>. The array is shared, not copied.
+     */
+    public static ByteString wrap(byte[] array, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > array.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        return new ByteString(array, null, offset, length);
+    }
+
+    /**
+     * Create a read-only view over the remaining bytes of <code>buf</code>. The content is shared, not
+     * copied, and the position of <code>buf</code> is not changed.
+     */
+    public static ByteString wrap(ByteBuffer buf) {
+        return wrap(buf, buf.position(), buf.remaining());
+    }
+
+    /**
+     * Create a read-only view over <code>length</code> bytes of <code>buf</code> starting at the absolute
+     * index <code>offset</code>. The content is shared, not copied.
+     */
+    public static ByteString wrap(ByteBuffer buf, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buf.limit()) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (buf.hasArray()) {
+            return new ByteString(buf.array(), null, buf.arrayOffset() + offset, length);
+        }
+        return new ByteString(null, buf, offset, length);
+    }
+
+    /**
+     * Read-only view over bytes <code>[from, to)</code> of this string, sharing its content.
+     */
+    public ByteString slice(int from, int to) {
+        if (from < 0 || to > length || from > to) {
+            throw new IndexOutOfBoundsException();
+        }
+        return new ByteString(value, buffer, offset + from, to - from);
     }
 
     public void set(int index, byte v) {
+        ensureWritable();
         value[index] = v;
     }
 
     public void set(int startIndex, byte[] val) {
+        ensureWritable();
         System.arraycopy(val, 0, value, startIndex, val.length);
     }
 
+    private void ensureWritable() {
+        if (view) {
+            throw new UnsupportedOperationException("ByteString view is read-only");
+        }
+    }
+
+    public byte byteAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException();
+        }
+        return value != null ? value[offset + index] : buffer.get(offset + index);
+    }
+
+    /**
+     * Copy of the content. Prefer {@link #byteAt(int)}, {@link #copyTo(ByteBuffer)} or
+     * {@link #writeTo(OutputStream)} on hot paths.
+     */
     public byte[] value() {
-        return Arrays.copyOf(value, value.length);
+        byte[] result = new byte[length];
+        copyTo(result, 0);
+        return result;
+    }
+
+    public void copyTo(byte[] dest, int destOffset) {
+        if (value != null) {
+            System.arraycopy(value, offset, dest, destOffset, length);
+        } else {
+            content().get(dest, destOffset, length);
+        }
+    }
+
+    public void copyTo(ByteBuffer dest) {
+        if (value != null) {
+            dest.put(value, offset, length);
+        } else {
+            dest.put(content());
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        if (value != null) {
+            out.write(value, offset, length);
+        } else {
+            byte[] chunk = new byte[Math.min(length, 8192)];
+            ByteBuffer src = content();
+            while (src.hasRemaining()) {
+                int n = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Read-only {@link ByteBuffer} over the content of this string. No bytes are copied.
+     */
+    public ByteBuffer asByteBuffer() {
+        if (value != null) {
+            return ByteBuffer.wrap(value, offset, length).slice().asReadOnlyBuffer();
+        }
+        return content().slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Feed the content into <code>digest</code>.
+     */
+    public void updateDigest(MessageDigest digest) {
+        if (value != null) {
+            digest.update(value, offset, length);
+        } else {
+            digest.update(content());
+        }
+    }
+
+    //backing storage, for readers in this package
+    byte[] array() {
+        return value;
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    private ByteBuffer content() {
+        ByteBuffer dup = buffer.duplicate();
+        dup.limit(offset + length).position(offset);
+        return dup;
+    }
+
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ByteString)) {
+            return false;
+        }
+
+        ByteString other = (ByteString) obj;
+        if (other.length != length) {
+            return false;
+        }
+        if (value != null && other.value != null) {
+            for (int i = 0; i < length; i++) {
+                if (value[offset + i] != other.value[other.offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (int i = 0; i < length; i++) {
+            if (byteAt(i) != other.byteAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare the bytes of both strings as unsigned values; a prefix sorts first.
+     */
+    public int compareTo(ByteString other) {
+        int n = Math.min(length, other.length);
+        for (int i = 0; i < n; i++) {
+            int a = (value != null ? value[offset + i] : buffer.get(offset + i)) & 0xFF;
+            int b = (other.value != null ? other.value[other.offset + i] : other.buffer.get(other.offset + i)) & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - other.length;
+    }
+
+    /**
+     * Compare with the platform-charset bytes of <code>str</code>, as {@link #compareTo(ByteString)}.
+     * ASCII strings are compared without converting them.
+     */
+    int compareTo(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) >= 0x80) {
+                return compareTo(new ByteString(str));
+            }
+        }
+
+        int n = Math.min(length, str.length());
+        for (int i = 0; i < n; i++) {
+            int a = (value != null ? value[offset + i] : buffer.get(offset + i)) & 0xFF;
+            int b = str.charAt(i);
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - str.length();
+    }
+
+    public int hashCode() {
+        int h = 1;
+        if (value != null) {
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + value[i];
+            }
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + buffer.get(i);
+            }
+        }
+        return h;
     }
 
     public String toString() {
-        return new String(value);
+        return value != null ? new String(value, offset, length) : new String(value());
     }
 
     public String toString(String encoding) throws UnsupportedEncodingException {
-        return new String(value, encoding);
+        return value != null ? new String(value, offset, length, encoding) : new String(value(), encoding);
     }
 
     public int length() {
-        return value.length;
+        return length;
     }
 }
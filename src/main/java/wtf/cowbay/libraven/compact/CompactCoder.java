@@ -19,12 +19,14 @@ package wtf.cowbay.libraven.compact;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Conversions between compact peer strings and <code>a.b.c.d:port</code> strings. See {@link PeerList} for
+ * handling many peers without creating a string per peer.
+ */
 public class CompactCoder {
     public static final Pattern IP_ADDRESS_WITH_PORT
             = Pattern.compile(
@@ -38,50 +40,21 @@ public class CompactCoder {
     }
 
     public static List<String> compact2strings(byte[] byteArray) {
-        if (byteArray.length % 6 != 0) {
-            throw new IllegalArgumentException("length of byte array must be multiples of 6");
-        }
+        PeerList peers = new PeerList();
+        peers.decodeIPv4(byteArray, 0, byteArray.length);
 
-        int i = 0;
-        StringBuffer buf = new StringBuffer();
-        ArrayList<String> result = new ArrayList<String>();
-        while (i < byteArray.length) {
-            int port = ((byteArray[i + 4] & 0xFF) << 8) | (byteArray[i + 5] & 0xFF);
-            buf.setLength(0);
-            buf.append(byteArray[0]).append(".");
-            buf.append(byteArray[1]).append(".");
-            buf.append(byteArray[2]).append(".");
-            buf.append(byteArray[3]).append(":");
-            buf.append(port);
-
-            result.add(buf.toString());
-            i += 6;
+        ArrayList<String> result = new ArrayList<String>(peers.ipv4Count());
+        for (int i = 0; i < peers.ipv4Count(); i++) {
+            result.add(PeerList.formatIPv4(peers.ipv4At(i)));
         }
-
         return result;
     }
 
     public static byte[] strings2compact(List<String> ips) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
+        PeerList peers = new PeerList();
         for (String ip : ips) {
-            Matcher matcher = IP_ADDRESS_WITH_PORT.matcher(ip);
-
-            if (!matcher.find()) {
-                throw new IllegalArgumentException(ip + " is not a valide ip address(with port)");
-            } else {
-                out.write(Byte.parseByte(matcher.group(2)));
-                out.write(Byte.parseByte(matcher.group(3)));
-                out.write(Byte.parseByte(matcher.group(4)));
-                out.write(Byte.parseByte(matcher.group(5)));
-
-                //port
-                int port = Integer.parseInt(matcher.group(6));
-                out.write(port >> 8);
-                out.write(port & 0xFF);
-            }
+            peers.addIPv4(ip);
         }
-
-        return out.toByteArray();
+        return peers.toCompactIPv4();
     }
 }
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.compact;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A set of peers in compact form, for merging the peers of many trackers and DHT responses without
+ * duplicates. IPv4 peers are stored as packed <code>long</code>s (see {@link PeerList#ipv4At(int)}), IPv6
+ * peers as raw 18-byte records; each peer also has the time it was last added, with a precision of one
+ * second. Entries are kept in dense primitive arrays indexed by open-addressing hash tables of
+ * <code>int</code>s, which is about 20 bytes per IPv4 peer and no object per peer.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+public class CompactPeerSet {
+    private static final int IPV6_LENGTH = PeerList.IPV6_LENGTH;
+
+    private final Family ipv4;
+    private final Family ipv6;
+
+    private long[] ipv4Peers;
+    private byte[] ipv6Peers;
+
+    public CompactPeerSet() {
+        this(16);
+    }
+
+    /**
+     * @param expectedPeers number of IPv4 peers to make room for
+     */
+    public CompactPeerSet(int expectedPeers) {
+        if (expectedPeers < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        ipv4Peers = new long[Math.max(expectedPeers, 4)];
+        ipv6Peers = new byte[4 * IPV6_LENGTH];
+
+        ipv4 = new Family(ipv4Peers.length) {
+            int hash(int entry) {
+                return hashIPv4(ipv4Peers[entry]);
+            }
+
+            void grow(int capacity) {
+                long[] grown = new long[capacity];
+                System.arraycopy(ipv4Peers, 0, grown, 0, size);
+                ipv4Peers = grown;
+            }
+
+            void move(int from, int to) {
+                ipv4Peers[to] = ipv4Peers[from];
+            }
+        };
+        ipv6 = new Family(4) {
+            int hash(int entry) {
+                return hashIPv6(ipv6Peers, entry * IPV6_LENGTH);
+            }
+
+            void grow(int capacity) {
+                byte[] grown = new byte[capacity * IPV6_LENGTH];
+                System.arraycopy(ipv6Peers, 0, grown, 0, size * IPV6_LENGTH);
+                ipv6Peers = grown;
+            }
+
+            void move(int from, int to) {
+                System.arraycopy(ipv6Peers, from * IPV6_LENGTH, ipv6Peers, to * IPV6_LENGTH, IPV6_LENGTH);
+            }
+        };
+    }
+
+    public int size() {
+        return ipv4.size + ipv6.size;
+    }
+
+    public int ipv4Count() {
+        return ipv4.size;
+    }
+
+    public int ipv6Count() {
+        return ipv6.size;
+    }
+
+    /**
+     * Add an IPv4 peer, or refresh its time if it is already in the set.
+     *
+     * @param peer <code>address &lt;&lt; 16 | port</code>
+     * @param time time the peer was seen, in milliseconds
+     * @return true if the peer was not in the set
+     */
+    public boolean addIPv4(long peer, long time) {
+        int slot = findIPv4(peer);
+        if (ipv4.table[slot] != 0) {
+            ipv4.times[ipv4.table[slot] - 1] = seconds(time);
+            return false;
+        }
+        int entry = ipv4.append(seconds(time));
+        ipv4Peers[entry] = peer;
+        ipv4.index(slot, entry);
+        return true;
+    }
+
+    /**
+     * Add an IPv6 peer (16-byte address and 2-byte port at <code>offset</code>), or refresh its time.
+     *
+     * @return true if the peer was not in the set
+     */
+    public boolean addIPv6(byte[] record, int offset, long time) {
+        int slot = findIPv6(record, offset);
+        if (ipv6.table[slot] != 0) {
+            ipv6.times[ipv6.table[slot] - 1] = seconds(time);
+            return false;
+        }
+        int entry = ipv6.append(seconds(time));
+        System.arraycopy(record, offset, ipv6Peers, entry * IPV6_LENGTH, IPV6_LENGTH);
+        ipv6.index(slot, entry);
+        return true;
+    }
+
+    public int addAll(byte[] compact, long time) {
+        return addAll(compact, 0, compact.length, time);
+    }
+
+    /**
+     * Add the IPv4 peers of a compact string.
+     *
+     * @return number of peers that were not in the set
+     */
+    public int addAll(byte[] compact, int offset, int length, long time) {
+        if (length % PeerList.IPV4_LENGTH != 0) {
+            throw new IllegalArgumentException("length of byte array must be multiples of 6");
+        }
+        int added = 0;
+        for (int i = offset; i < offset + length; i += PeerList.IPV4_LENGTH) {
+            long peer = ((compact[i] & 0xFFL) << 40) | ((compact[i + 1] & 0xFFL) << 32)
+                    | ((compact[i + 2] & 0xFFL) << 24) | ((compact[i + 3] & 0xFFL) << 16)
+                    | ((compact[i + 4] & 0xFFL) << 8) | (compact[i + 5] & 0xFFL);
+            if (addIPv4(peer, time)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Add the IPv6 peers of a compact string.
+     *
+     * @return number of peers that were not in the set
+     */
+    public int addAllIPv6(byte[] compact, long time) {
+        if (compact.length % IPV6_LENGTH != 0) {
+            throw new IllegalArgumentException("length of byte array must be multiples of " + IPV6_LENGTH);
+        }
+        int added = 0;
+        for (int i = 0; i < compact.length; i += IPV6_LENGTH) {
+            if (addIPv6(compact, i, time)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Add every peer of <code>peers</code>.
+     *
+     * @return number of peers that were not in the set
+     */
+    public int addAll(PeerList peers, long time) {
+        int added = 0;
+        for (int i = 0; i < peers.ipv4Count(); i++) {
+            if (addIPv4(peers.ipv4At(i), time)) {
+                added++;
+            }
+        }
+        byte[] record = new byte[IPV6_LENGTH];
+        for (int i = 0; i < peers.ipv6Count(); i++) {
+            peers.ipv6Address(i, record, 0);
+            int port = peers.ipv6Port(i);
+            record[16] = (byte) (port >>> 8);
+            record[17] = (byte) port;
+            if (addIPv6(record, 0, time)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    public boolean containsIPv4(long peer) {
+        return ipv4.table[findIPv4(peer)] != 0;
+    }
+
+    public boolean containsIPv6(byte[] record, int offset) {
+        return ipv6.table[findIPv6(record, offset)] != 0;
+    }
+
+    /**
+     * Remove the peers last added before <code>cutoff</code>, in milliseconds. Times are kept to the
+     * second, so a peer is removed only if its whole second is before <code>cutoff</code>.
+     *
+     * @return number of peers removed
+     */
+    public int expire(long cutoff) {
+        long limit = cutoff / 1000; //peers of the second containing cutoff are kept
+        return ipv4.expire(limit) + ipv6.expire(limit);
+    }
+
+    /**
+     * Pick <code>n</code> distinct peers at random, or every peer if there are fewer.
+     */
+    public PeerList sample(int n, Random random) {
+        PeerList result = new PeerList();
+        int total = size();
+        if (n >= total) {
+            for (int i = 0; i < total; i++) {
+                addTo(result, i);
+            }
+            return result;
+        }
+
+        //Floyd's algorithm: n distinct indexes in O(n)
+        Set<Integer> chosen = new HashSet<Integer>(n * 2);
+        for (int j = total - n; j < total; j++) {
+            int t = random.nextInt(j + 1);
+            if (!chosen.add(t)) {
+                chosen.add(j);
+            }
+        }
+        for (int i : chosen) {
+            addTo(result, i);
+        }
+        return result;
+    }
+
+    private void addTo(PeerList list, int i) {
+        if (i < ipv4.size) {
+            long peer = ipv4Peers[i];
+            list.addIPv4(PeerList.address(peer), PeerList.port(peer));
+        } else {
+            int pos = (i - ipv4.size) * IPV6_LENGTH;
+            list.addIPv6(ipv6Peers, pos, ((ipv6Peers[pos + 16] & 0xFF) << 8) | (ipv6Peers[pos + 17] & 0xFF));
+        }
+    }
+
+    /**
+     * The IPv4 peers in compact form, in the order they were first added.
+     */
+    public byte[] toCompactIPv4() {
+        byte[] result = new byte[ipv4.size * PeerList.IPV4_LENGTH];
+        for (int i = 0; i < ipv4.size; i++) {
+            long peer = ipv4Peers[i];
+            int pos = i * PeerList.IPV4_LENGTH;
+            for (int b = 0; b < PeerList.IPV4_LENGTH; b++) {
+                result[pos + b] = (byte) (peer >>> (40 - 8 * b));
+            }
+        }
+        return result;
+    }
+
+    public byte[] toCompactIPv6() {
+        byte[] result = new byte[ipv6.size * IPV6_LENGTH];
+        System.arraycopy(ipv6Peers, 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Put the IPv4 peers in compact form into <code>buf</code>, advancing its position.
+     */
+    public void encodeIPv4(ByteBuffer buf) {
+        for (int i = 0; i < ipv4.size; i++) {
+            long peer = ipv4Peers[i];
+            buf.putInt((int) (peer >>> 16));
+            buf.putShort((short) peer);
+        }
+    }
+
+    public void encodeIPv6(ByteBuffer buf) {
+        buf.put(ipv6Peers, 0, ipv6.size * IPV6_LENGTH);
+    }
+
+    private int findIPv4(long peer) {
+        int[] table = ipv4.table;
+        int mask = table.length - 1;
+        int slot = hashIPv4(peer) & mask;
+        while (table[slot] != 0 && ipv4Peers[table[slot] - 1] != peer) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int findIPv6(byte[] record, int offset) {
+        int[] table = ipv6.table;
+        int mask = table.length - 1;
+        int slot = hashIPv6(record, offset) & mask;
+        while (table[slot] != 0 && !equalsIPv6(table[slot] - 1, record, offset)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean equalsIPv6(int entry, byte[] record, int offset) {
+        int pos = entry * IPV6_LENGTH;
+        for (int i = 0; i < IPV6_LENGTH; i++) {
+            if (ipv6Peers[pos + i] != record[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hashIPv4(long peer) {
+        //finalizer of MurmurHash3, spreads the low bits of nearby addresses
+        peer ^= peer >>> 33;
+        peer *= 0xff51afd7ed558ccdL;
+        peer ^= peer >>> 33;
+        return (int) peer;
+    }
+
+    private static int hashIPv6(byte[] record, int offset) {
+        int h = 1;
+        for (int i = 0; i < IPV6_LENGTH; i++) {
+            h = 31 * h + record[offset + i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int seconds(long time) {
+        return (int) (time / 1000); //read back as unsigned, good until 2106
+    }
+
+    /**
+     * Dense entries of one address family: their times and a hash table of entry index + 1 (0 is an
+     * empty slot). The peers themselves are stored by the subclass.
+     */
+    private abstract static class Family {
+        int size = 0;
+        int[] times;
+        int[] table;
+
+        Family(int capacity) {
+            times = new int[capacity];
+            table = new int[tableSize(capacity)];
+        }
+
+        private static int tableSize(int entries) {
+            int size = 16;
+            while (size * 3 / 4 < entries) {
+                size <<= 1;
+            }
+            return size;
+        }
+
+        abstract int hash(int entry);
+
+        abstract void grow(int capacity);
+
+        abstract void move(int from, int to);
+
+        /**
+         * Make room for a new entry and record its time. The caller stores the peer, then calls
+         * {@link #index(int, int)}.
+         */
+        int append(int time) {
+            if (size == times.length) {
+                int capacity = times.length * 2;
+                int[] grown = new int[capacity];
+                System.arraycopy(times, 0, grown, 0, size);
+                times = grown;
+                grow(capacity);
+            }
+            times[size] = time;
+            return size++;
+        }
+
+        /**
+         * Put a new entry into the hash table at the empty <code>slot</code> found for it.
+         */
+        void index(int slot, int entry) {
+            if (size > table.length * 3 / 4) {
+                table = new int[table.length * 2];
+                rehash();
+            } else {
+                table[slot] = entry + 1;
+            }
+        }
+
+        void rehash() {
+            Arrays.fill(table, 0);
+            int mask = table.length - 1;
+            for (int entry = 0; entry < size; entry++) {
+                int slot = hash(entry) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = entry + 1;
+            }
+        }
+
+        int expire(long limit) {
+            int kept = 0;
+            for (int entry = 0; entry < size; entry++) {
+                if ((times[entry] & 0xFFFFFFFFL) >= limit) {
+                    if (kept != entry) {
+                        times[kept] = times[entry];
+                        move(entry, kept);
+                    }
+                    kept++;
+                }
+            }
+            int removed = size - kept;
+            if (removed > 0) {
+                size = kept;
+                rehash();
+            }
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.compact;
+
+import java.nio.ByteBuffer;
+
+/**
+ * DHT nodes in compact node info form (BEP 5): a 20-byte node id followed by a compact IPv4 peer, 26 bytes
+ * per node. Records are kept as they appear on the wire, so decoding and encoding are array copies. A list
+ * can be {@link #clear() cleared} and refilled without reallocating.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+public class NodeList {
+    public static final int ID_LENGTH = 20;
+    public static final int NODE_LENGTH = ID_LENGTH + PeerList.IPV4_LENGTH;
+
+    private byte[] nodes = new byte[8 * NODE_LENGTH];
+    private int count = 0;
+
+    public int size() {
+        return count;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    private void ensure(int extra) {
+        int needed = (count + extra) * NODE_LENGTH;
+        if (needed > nodes.length) {
+            byte[] grown = new byte[Math.max(needed, nodes.length * 2)];
+            System.arraycopy(nodes, 0, grown, 0, count * NODE_LENGTH);
+            nodes = grown;
+        }
+    }
+
+    /**
+     * @param id      20 bytes of <code>id</code> starting at <code>offset</code>
+     * @param address IPv4 address, most significant byte first
+     */
+    public void add(byte[] id, int offset, int address, int port) {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid port " + port);
+        }
+        ensure(1);
+        int pos = count++ * NODE_LENGTH;
+        System.arraycopy(id, offset, nodes, pos, ID_LENGTH);
+        nodes[pos + 20] = (byte) (address >>> 24);
+        nodes[pos + 21] = (byte) (address >>> 16);
+        nodes[pos + 22] = (byte) (address >>> 8);
+        nodes[pos + 23] = (byte) address;
+        nodes[pos + 24] = (byte) (port >>> 8);
+        nodes[pos + 25] = (byte) port;
+    }
+
+    private int offset(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("No node " + i);
+        }
+        return i * NODE_LENGTH;
+    }
+
+    /**
+     * Copy the id of node <code>i</code> into <code>dest</code> at <code>offset</code>.
+     */
+    public void id(int i, byte[] dest, int offset) {
+        System.arraycopy(nodes, offset(i), dest, offset, ID_LENGTH);
+    }
+
+    /**
+     * Whether the id of node <code>i</code> equals the 20 bytes of <code>id</code> at <code>offset</code>.
+     */
+    public boolean idEquals(int i, byte[] id, int offset) {
+        int pos = offset(i);
+        for (int j = 0; j < ID_LENGTH; j++) {
+            if (nodes[pos + j] != id[offset + j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Address and port of node <code>i</code> as <code>address &lt;&lt; 16 | port</code>, see
+     * {@link PeerList#address(long)} and {@link PeerList#port(long)}.
+     */
+    public long peerAt(int i) {
+        int pos = offset(i) + ID_LENGTH;
+        long result = 0;
+        for (int j = 0; j < PeerList.IPV4_LENGTH; j++) {
+            result = (result << 8) | (nodes[pos + j] & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * Append the nodes of a compact node info string (<code>nodes</code> of a DHT response).
+     *
+     * @return number of nodes added
+     */
+    public int decode(byte[] compact, int offset, int length) {
+        if (length % NODE_LENGTH != 0) {
+            throw new IllegalArgumentException("length of byte array must be multiples of " + NODE_LENGTH);
+        }
+        int added = length / NODE_LENGTH;
+        ensure(added);
+        System.arraycopy(compact, offset, nodes, count * NODE_LENGTH, length);
+        count += added;
+        return added;
+    }
+
+    /**
+     * Write the nodes in compact form into <code>dest</code> at <code>offset</code>.
+     *
+     * @return number of bytes written
+     */
+    public int encode(byte[] dest, int offset) {
+        int length = count * NODE_LENGTH;
+        System.arraycopy(nodes, 0, dest, offset, length);
+        return length;
+    }
+
+    /**
+     * Put the nodes in compact form into <code>buf</code>, advancing its position.
+     */
+    public void encode(ByteBuffer buf) {
+        buf.put(nodes, 0, count * NODE_LENGTH);
+    }
+
+    public byte[] toCompact() {
+        byte[] result = new byte[count * NODE_LENGTH];
+        encode(result, 0);
+        return result;
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.compact;
+
+import wtf.cowbay.libraven.bencode.ByteString;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Peers in compact form: IPv4 peers (6 bytes on the wire) packed into <code>long</code>s as
+ * <code>address &lt;&lt; 16 | port</code>, IPv6 peers (18 bytes on the wire, BEP 7) kept as raw records.
+ * Decoding from and encoding to compact strings copies bytes only; {@link InetSocketAddress}es are
+ * created only when asked for. A list can be {@link #clear() cleared} and refilled without reallocating.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+public class PeerList {
+    public static final int IPV4_LENGTH = 6;
+    public static final int IPV6_LENGTH = 18;
+
+    private long[] ipv4 = new long[16];
+    private int ipv4Count = 0;
+    private byte[] ipv6 = new byte[4 * IPV6_LENGTH];
+    private int ipv6Count = 0;
+
+    public int size() {
+        return ipv4Count + ipv6Count;
+    }
+
+    public int ipv4Count() {
+        return ipv4Count;
+    }
+
+    public int ipv6Count() {
+        return ipv6Count;
+    }
+
+    public void clear() {
+        ipv4Count = 0;
+        ipv6Count = 0;
+    }
+
+    private void ensureIPv4(int extra) {
+        if (ipv4Count + extra > ipv4.length) {
+            long[] grown = new long[Math.max(ipv4Count + extra, ipv4.length * 2)];
+            System.arraycopy(ipv4, 0, grown, 0, ipv4Count);
+            ipv4 = grown;
+        }
+    }
+
+    private void ensureIPv6(int extra) {
+        int needed = (ipv6Count + extra) * IPV6_LENGTH;
+        if (needed > ipv6.length) {
+            byte[] grown = new byte[Math.max(needed, ipv6.length * 2)];
+            System.arraycopy(ipv6, 0, grown, 0, ipv6Count * IPV6_LENGTH);
+            ipv6 = grown;
+        }
+    }
+
+    /**
+     * @param address IPv4 address, most significant byte first
+     */
+    public void addIPv4(int address, int port) {
+        checkPort(port);
+        ensureIPv4(1);
+        ipv4[ipv4Count++] = pack(address, port);
+    }
+
+    /**
+     * Add a peer given as <code>a.b.c.d:port</code>.
+     */
+    public void addIPv4(String peer) {
+        ensureIPv4(1);
+        ipv4[ipv4Count++] = parseIPv4(peer);
+    }
+
+    /**
+     * @param address 16 bytes of <code>address</code> starting at <code>offset</code>
+     */
+    public void addIPv6(byte[] address, int offset, int port) {
+        checkPort(port);
+        ensureIPv6(1);
+        int pos = ipv6Count++ * IPV6_LENGTH;
+        System.arraycopy(address, offset, ipv6, pos, 16);
+        ipv6[pos + 16] = (byte) (port >>> 8);
+        ipv6[pos + 17] = (byte) port;
+    }
+
+    /**
+     * IPv4 peer <code>i</code> as <code>address &lt;&lt; 16 | port</code>.
+     */
+    public long ipv4At(int i) {
+        if (i < 0 || i >= ipv4Count) {
+            throw new IndexOutOfBoundsException("No IPv4 peer " + i);
+        }
+        return ipv4[i];
+    }
+
+    public static int address(long packed) {
+        return (int) (packed >>> 16);
+    }
+
+    public static int port(long packed) {
+        return (int) (packed & 0xFFFF);
+    }
+
+    /**
+     * Copy the 16-byte address of IPv6 peer <code>i</code> into <code>dest</code>.
+     */
+    public void ipv6Address(int i, byte[] dest, int offset) {
+        System.arraycopy(ipv6, ipv6Offset(i), dest, offset, 16);
+    }
+
+    public int ipv6Port(int i) {
+        int pos = ipv6Offset(i);
+        return ((ipv6[pos + 16] & 0xFF) << 8) | (ipv6[pos + 17] & 0xFF);
+    }
+
+    private int ipv6Offset(int i) {
+        if (i < 0 || i >= ipv6Count) {
+            throw new IndexOutOfBoundsException("No IPv6 peer " + i);
+        }
+        return i * IPV6_LENGTH;
+    }
+
+    /**
+     * Append the IPv4 peers of a compact string (e.g. <code>peers</code> of an announce response).
+     *
+     * @return number of peers added
+     */
+    public int decodeIPv4(byte[] compact, int offset, int length) {
+        int count = count(length, IPV4_LENGTH);
+        ensureIPv4(count);
+        for (int i = offset; i < offset + length; i += IPV4_LENGTH) {
+            int address = ((compact[i] & 0xFF) << 24) | ((compact[i + 1] & 0xFF) << 16)
+                    | ((compact[i + 2] & 0xFF) << 8) | (compact[i + 3] & 0xFF);
+            int port = ((compact[i + 4] & 0xFF) << 8) | (compact[i + 5] & 0xFF);
+            ipv4[ipv4Count++] = pack(address, port);
+        }
+        return count;
+    }
+
+    /**
+     * Append the IPv4 peers in the remaining bytes of <code>buf</code>. The position of <code>buf</code>
+     * is not changed.
+     */
+    public int decodeIPv4(ByteBuffer buf) {
+        int count = count(buf.remaining(), IPV4_LENGTH);
+        ensureIPv4(count);
+        for (int i = buf.position(); i < buf.limit(); i += IPV4_LENGTH) {
+            int address = buf.getInt(i);
+            int port = buf.getShort(i + 4) & 0xFFFF;
+            ipv4[ipv4Count++] = pack(address, port);
+        }
+        return count;
+    }
+
+    public int decodeIPv4(ByteString compact) {
+        int count = count(compact.length(), IPV4_LENGTH);
+        ensureIPv4(count);
+        for (int i = 0; i < compact.length(); i += IPV4_LENGTH) {
+            int address = ((compact.byteAt(i) & 0xFF) << 24) | ((compact.byteAt(i + 1) & 0xFF) << 16)
+                    | ((compact.byteAt(i + 2) & 0xFF) << 8) | (compact.byteAt(i + 3) & 0xFF);
+            int port = ((compact.byteAt(i + 4) & 0xFF) << 8) | (compact.byteAt(i + 5) & 0xFF);
+            ipv4[ipv4Count++] = pack(address, port);
+        }
+        return count;
+    }
+
+    /**
+     * Append the IPv6 peers of a compact string (e.g. <code>peers6</code> of an announce response).
+     *
+     * @return number of peers added
+     */
+    public int decodeIPv6(byte[] compact, int offset, int length) {
+        int count = count(length, IPV6_LENGTH);
+        ensureIPv6(count);
+        System.arraycopy(compact, offset, ipv6, ipv6Count * IPV6_LENGTH, length);
+        ipv6Count += count;
+        return count;
+    }
+
+    /**
+     * Append the IPv6 peers in the remaining bytes of <code>buf</code>. The position of <code>buf</code>
+     * is not changed.
+     */
+    public int decodeIPv6(ByteBuffer buf) {
+        int count = count(buf.remaining(), IPV6_LENGTH);
+        ensureIPv6(count);
+        ByteBuffer src = buf.duplicate();
+        src.get(ipv6, ipv6Count * IPV6_LENGTH, src.remaining());
+        ipv6Count += count;
+        return count;
+    }
+
+    public int decodeIPv6(ByteString compact) {
+        int count = count(compact.length(), IPV6_LENGTH);
+        ensureIPv6(count);
+        compact.copyTo(ipv6, ipv6Count * IPV6_LENGTH);
+        ipv6Count += count;
+        return count;
+    }
+
+    private static int count(int length, int recordLength) {
+        if (length % recordLength != 0) {
+            throw new IllegalArgumentException("length of byte array must be multiples of " + recordLength);
+        }
+        return length / recordLength;
+    }
+
+    /**
+     * Write the IPv4 peers in compact form into <code>dest</code> at <code>offset</code>.
+     *
+     * @return number of bytes written
+     */
+    public int encodeIPv4(byte[] dest, int offset) {
+        int length = ipv4Count * IPV4_LENGTH;
+        if (offset < 0 || offset + length > dest.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int i = 0; i < ipv4Count; i++) {
+            long peer = ipv4[i];
+            int pos = offset + i * IPV4_LENGTH;
+            dest[pos] = (byte) (peer >>> 40);
+            dest[pos + 1] = (byte) (peer >>> 32);
+            dest[pos + 2] = (byte) (peer >>> 24);
+            dest[pos + 3] = (byte) (peer >>> 16);
+            dest[pos + 4] = (byte) (peer >>> 8);
+            dest[pos + 5] = (byte) peer;
+        }
+        return length;
+    }
+
+    /**
+     * Put the IPv4 peers in compact form into <code>buf</code>, advancing its position.
+     */
+    public void encodeIPv4(ByteBuffer buf) {
+        for (int i = 0; i < ipv4Count; i++) {
+            long peer = ipv4[i];
+            buf.putInt((int) (peer >>> 16));
+            buf.putShort((short) peer);
+        }
+    }
+
+    public byte[] toCompactIPv4() {
+        byte[] result = new byte[ipv4Count * IPV4_LENGTH];
+        encodeIPv4(result, 0);
+        return result;
+    }
+
+    /**
+     * Write the IPv6 peers in compact form into <code>dest</code> at <code>offset</code>.
+     *
+     * @return number of bytes written
+     */
+    public int encodeIPv6(byte[] dest, int offset) {
+        int length = ipv6Count * IPV6_LENGTH;
+        System.arraycopy(ipv6, 0, dest, offset, length);
+        return length;
+    }
+
+    /**
+     * Put the IPv6 peers in compact form into <code>buf</code>, advancing its position.
+     */
+    public void encodeIPv6(ByteBuffer buf) {
+        buf.put(ipv6, 0, ipv6Count * IPV6_LENGTH);
+    }
+
+    public byte[] toCompactIPv6() {
+        byte[] result = new byte[ipv6Count * IPV6_LENGTH];
+        encodeIPv6(result, 0);
+        return result;
+    }
+
+    /**
+     * Create an address for every peer, IPv4 peers first.
+     */
+    public List<InetSocketAddress> toSocketAddresses() {
+        List<InetSocketAddress> result = new ArrayList<InetSocketAddress>(size());
+        try {
+            for (int i = 0; i < ipv4Count; i++) {
+                long peer = ipv4[i];
+                byte[] address = {(byte) (peer >>> 40), (byte) (peer >>> 32), (byte) (peer >>> 24), (byte) (peer >>> 16)};
+                result.add(new InetSocketAddress(InetAddress.getByAddress(address), port(peer)));
+            }
+            for (int i = 0; i < ipv6Count; i++) {
+                byte[] address = new byte[16];
+                ipv6Address(i, address, 0);
+                result.add(new InetSocketAddress(InetAddress.getByAddress(address), ipv6Port(i)));
+            }
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); //never happens, addresses have valid lengths
+        }
+        return result;
+    }
+
+    private static long pack(int address, int port) {
+        return ((address & 0xFFFFFFFFL) << 16) | port;
+    }
+
+    private static void checkPort(int port) {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid port " + port);
+        }
+    }
+
+    /**
+     * Parse <code>a.b.c.d:port</code> into <code>address &lt;&lt; 16 | port</code>.
+     */
+    public static long parseIPv4(String peer) {
+        long result = 0;
+        int part = 0;
+        int value = -1;
+        for (int i = 0; i < peer.length(); i++) {
+            char c = peer.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > (part < 4 ? 255 : 0xFFFF)) {
+                    value = -1;
+                    break;
+                }
+            } else if (value >= 0 && (part < 3 ? c == '.' : part == 3 && c == ':')) {
+                result = (result << 8) | value;
+                part++;
+                value = -1;
+            } else {
+                value = -1;
+                break;
+            }
+        }
+
+        if (part != 4 || value < 0) {
+            throw new IllegalArgumentException(peer + " is not a valide ip address(with port)");
+        }
+        return (result << 16) | value;
+    }
+
+    /**
+     * Format <code>address &lt;&lt; 16 | port</code> as <code>a.b.c.d:port</code>.
+     */
+    public static String formatIPv4(long peer) {
+        StringBuilder buf = new StringBuilder(21);
+        buf.append((peer >>> 40) & 0xFF).append('.');
+        buf.append((peer >>> 32) & 0xFF).append('.');
+        buf.append((peer >>> 24) & 0xFF).append('.');
+        buf.append((peer >>> 16) & 0xFF).append(':');
+        buf.append(peer & 0xFFFF);
+        return buf.toString();
+    }
+}
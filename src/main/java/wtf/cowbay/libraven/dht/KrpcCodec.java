@@ -0,0 +1,439 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.dht;
+
+import wtf.cowbay.libraven.bencode.BencodeReader;
+import wtf.cowbay.libraven.compact.NodeList;
+import wtf.cowbay.libraven.compact.PeerList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes {@link KrpcMessage}s without building maps. Encoding writes straight into a
+ * caller-supplied {@link ByteBuffer}, dictionary keys being pre-encoded constants written in sorted order;
+ * decoding matches keys as raw bytes and reads strings into the preallocated fields of the message, so
+ * neither allocates for queries and responses once the codec is warmed up.
+ * <p/>
+ * Keys written per message:
+ * <pre>
+ * query     a: id, implied_port, info_hash, port, target, token (as needed by the method), q, t, v, y
+ * response  r: id, nodes, token, values (those set), t, v, y
+ * error     e: [code, message], t, v, y
+ * </pre>
+ * Malformed messages result in an {@link IllegalStateException}, which a node would answer with
+ * {@link KrpcMessage#ERROR_PROTOCOL}. Instances hold a reader and scratch space and are not thread-safe.
+ */
+public class KrpcCodec {
+    private static final byte[] KEY_A = key("a");
+    private static final byte[] KEY_E = key("e");
+    private static final byte[] KEY_Q = key("q");
+    private static final byte[] KEY_R = key("r");
+    private static final byte[] KEY_T = key("t");
+    private static final byte[] KEY_V = key("v");
+    private static final byte[] KEY_Y = key("y");
+    private static final byte[] KEY_ID = key("id");
+    private static final byte[] KEY_IMPLIED_PORT = key("implied_port");
+    private static final byte[] KEY_INFO_HASH = key("info_hash");
+    private static final byte[] KEY_NODES = key("nodes");
+    private static final byte[] KEY_PORT = key("port");
+    private static final byte[] KEY_TARGET = key("target");
+    private static final byte[] KEY_TOKEN = key("token");
+    private static final byte[] KEY_VALUES = key("values");
+
+    private static final byte[][] KEYS = names("t", "y", "q", "a", "r", "e", "v");
+    private static final byte[][] ARGUMENT_KEYS = names("id", "target", "info_hash", "port", "token", "implied_port", "nodes", "values");
+    private static final KrpcMessage.Method[] METHODS = KrpcMessage.Method.values();
+    private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
+
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_NAMES[i] = METHODS[i].name;
+        }
+    }
+
+    private static final int SEEN_ID = 1;
+    private static final int SEEN_TARGET = 1 << 1;
+    private static final int SEEN_INFO_HASH = 1 << 2;
+    private static final int SEEN_PORT = 1 << 3;
+    private static final int SEEN_TOKEN = 1 << 4;
+    private static final int SEEN_TRANSACTION = 1 << 5;
+    private static final int SEEN_METHOD = 1 << 6;
+    private static final int SEEN_ERROR = 1 << 7;
+
+    private final BencodeReader reader = new BencodeReader(new byte[0]);
+    private byte[] scratch = new byte[1500];
+    private final byte[] address = new byte[16];
+
+    private static byte[] key(String key) {
+        return (key.length() + ":" + key).getBytes();
+    }
+
+    private static byte[][] names(String... keys) {
+        byte[][] result = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = keys[i].getBytes();
+        }
+        return result;
+    }
+
+    /**
+     * Put <code>message</code> into <code>buf</code>, advancing its position.
+     *
+     * @throws java.nio.BufferOverflowException if the message doesn't fit
+     * @throws IllegalStateException            if the type, or the method of a query, is not set
+     */
+    public void encode(KrpcMessage message, ByteBuffer buf) {
+        if (message.type == null) {
+            throw new IllegalStateException("Message type is not set");
+        }
+
+        buf.put((byte) 'd');
+        switch (message.type) {
+            case QUERY:
+                if (message.method == null) {
+                    throw new IllegalStateException("Query method is not set");
+                }
+                buf.put(KEY_A);
+                encodeArguments(message, buf);
+                buf.put(KEY_Q);
+                putString(buf, message.method.name, 0, message.method.name.length);
+                break;
+            case RESPONSE:
+                buf.put(KEY_R);
+                encodeResponse(message, buf);
+                break;
+            default:
+                buf.put(KEY_E);
+                buf.put((byte) 'l');
+                putLong(buf, message.errorCode);
+                byte[] text = message.errorMessage == null ? new byte[0] : message.errorMessage.getBytes();
+                putString(buf, text, 0, text.length);
+                buf.put((byte) 'e');
+        }
+
+        buf.put(KEY_T);
+        putString(buf, message.transactionId, 0, message.transactionIdLength);
+        if (message.versionLength > 0) {
+            buf.put(KEY_V);
+            putString(buf, message.version, 0, message.versionLength);
+        }
+        buf.put(KEY_Y);
+        buf.put((byte) '1').put((byte) ':');
+        buf.put((byte) (message.type == KrpcMessage.Type.QUERY ? 'q' : message.type == KrpcMessage.Type.RESPONSE ? 'r' : 'e'));
+        buf.put((byte) 'e');
+    }
+
+    private static void encodeArguments(KrpcMessage message, ByteBuffer buf) {
+        KrpcMessage.Method method = message.method;
+        boolean announce = method == KrpcMessage.Method.ANNOUNCE_PEER;
+
+        buf.put((byte) 'd');
+        buf.put(KEY_ID);
+        putString(buf, message.id, 0, KrpcMessage.ID_LENGTH);
+        if (announce && message.impliedPort) {
+            buf.put(KEY_IMPLIED_PORT);
+            putLong(buf, 1);
+        }
+        if (announce || method == KrpcMessage.Method.GET_PEERS) {
+            buf.put(KEY_INFO_HASH);
+            putString(buf, message.infoHash, 0, KrpcMessage.ID_LENGTH);
+        }
+        if (announce) {
+            buf.put(KEY_PORT);
+            putLong(buf, message.port);
+        }
+        if (method == KrpcMessage.Method.FIND_NODE) {
+            buf.put(KEY_TARGET);
+            putString(buf, message.target, 0, KrpcMessage.ID_LENGTH);
+        }
+        if (announce) {
+            buf.put(KEY_TOKEN);
+            putString(buf, message.token, 0, message.tokenLength);
+        }
+        buf.put((byte) 'e');
+    }
+
+    private void encodeResponse(KrpcMessage message, ByteBuffer buf) {
+        buf.put((byte) 'd');
+        buf.put(KEY_ID);
+        putString(buf, message.id, 0, KrpcMessage.ID_LENGTH);
+        if (message.nodes.size() > 0) {
+            buf.put(KEY_NODES);
+            putLength(buf, message.nodes.size() * NodeList.NODE_LENGTH);
+            message.nodes.encode(buf);
+        }
+        if (message.tokenLength > 0) {
+            buf.put(KEY_TOKEN);
+            putString(buf, message.token, 0, message.tokenLength);
+        }
+        PeerList values = message.values;
+        if (values.size() > 0) {
+            buf.put(KEY_VALUES);
+            buf.put((byte) 'l');
+            for (int i = 0; i < values.ipv4Count(); i++) {
+                long peer = values.ipv4At(i);
+                putLength(buf, PeerList.IPV4_LENGTH);
+                buf.putInt(PeerList.address(peer));
+                buf.putShort((short) PeerList.port(peer));
+            }
+            for (int i = 0; i < values.ipv6Count(); i++) {
+                values.ipv6Address(i, address, 0);
+                putLength(buf, PeerList.IPV6_LENGTH);
+                buf.put(address);
+                buf.putShort((short) values.ipv6Port(i));
+            }
+            buf.put((byte) 'e');
+        }
+        buf.put((byte) 'e');
+    }
+
+    private static void putString(ByteBuffer buf, byte[] bytes, int offset, int length) {
+        putLength(buf, length);
+        buf.put(bytes, offset, length);
+    }
+
+    private static void putLength(ByteBuffer buf, int length) {
+        putDigits(buf, length);
+        buf.put((byte) ':');
+    }
+
+    private static void putLong(ByteBuffer buf, int value) {
+        buf.put((byte) 'i');
+        if (value < 0) {
+            buf.put((byte) '-');
+            value = -value;
+        }
+        putDigits(buf, value);
+        buf.put((byte) 'e');
+    }
+
+    private static void putDigits(ByteBuffer buf, int value) {
+        int div = 1;
+        while (value / div >= 10) {
+            div *= 10;
+        }
+        for (; div > 0; div /= 10) {
+            buf.put((byte) ('0' + value / div % 10));
+        }
+    }
+
+    public void decode(byte[] bytes, KrpcMessage message) throws IOException {
+        decode(bytes, 0, bytes.length, message);
+    }
+
+    /**
+     * Decode a packet into <code>message</code>, which is cleared first.
+     *
+     * @throws IllegalStateException if the packet is not a well-formed KRPC message
+     */
+    public void decode(byte[] bytes, int offset, int length, KrpcMessage message) throws IOException {
+        ensureScratch(length);
+        reader.reset(bytes, offset, length);
+        decode(message);
+    }
+
+    /**
+     * Decode the remaining bytes of <code>buf</code>; its position is not changed.
+     */
+    public void decode(ByteBuffer buf, KrpcMessage message) throws IOException {
+        ensureScratch(buf.remaining());
+        reader.reset(buf);
+        decode(message);
+    }
+
+    private void ensureScratch(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[length];
+        }
+    }
+
+    private void decode(KrpcMessage message) throws IOException {
+        message.clear();
+        int seen = 0;
+
+        reader.beginDict();
+        while (reader.hasNext()) {
+            switch (reader.readKey(KEYS)) {
+                case 0:
+                    message.transactionIdLength = reader.readBytes(message.transactionId, 0);
+                    seen |= SEEN_TRANSACTION;
+                    break;
+                case 1:
+                    message.type = readType();
+                    break;
+                case 2:
+                    int method = reader.readKey(METHOD_NAMES);
+                    message.method = method < 0 ? null : METHODS[method];
+                    seen |= SEEN_METHOD;
+                    break;
+                case 3:
+                case 4:
+                    seen |= readArguments(message);
+                    break;
+                case 5:
+                    readError(message);
+                    seen |= SEEN_ERROR;
+                    break;
+                case 6:
+                    message.versionLength = reader.readBytes(message.version, 0);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endDict();
+
+        check(message, seen);
+    }
+
+    private KrpcMessage.Type readType() throws IOException {
+        if (reader.readBytes(scratch, 0) == 1) {
+            switch (scratch[0]) {
+                case 'q':
+                    return KrpcMessage.Type.QUERY;
+                case 'r':
+                    return KrpcMessage.Type.RESPONSE;
+                case 'e':
+                    return KrpcMessage.Type.ERROR;
+            }
+        }
+        throw new IllegalStateException("Unknown message type");
+    }
+
+    private int readArguments(KrpcMessage message) throws IOException {
+        int seen = 0;
+        reader.beginDict();
+        while (reader.hasNext()) {
+            switch (reader.readKey(ARGUMENT_KEYS)) {
+                case 0:
+                    readId(message.id);
+                    seen |= SEEN_ID;
+                    break;
+                case 1:
+                    readId(message.target);
+                    seen |= SEEN_TARGET;
+                    break;
+                case 2:
+                    readId(message.infoHash);
+                    seen |= SEEN_INFO_HASH;
+                    break;
+                case 3:
+                    long port = reader.readLong();
+                    if (port < 0 || port > 0xFFFF) {
+                        throw new IllegalStateException("Invalid port " + port);
+                    }
+                    message.port = (int) port;
+                    seen |= SEEN_PORT;
+                    break;
+                case 4:
+                    message.tokenLength = reader.readBytes(message.token, 0);
+                    seen |= SEEN_TOKEN;
+                    break;
+                case 5:
+                    message.impliedPort = reader.readLong() != 0;
+                    break;
+                case 6:
+                    int length = reader.readBytes(scratch, 0);
+                    if (length % NodeList.NODE_LENGTH != 0) {
+                        throw new IllegalStateException("Invalid compact node info");
+                    }
+                    message.nodes.decode(scratch, 0, length);
+                    break;
+                case 7:
+                    readValues(message.values);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endDict();
+        return seen;
+    }
+
+    private void readId(byte[] dest) throws IOException {
+        if (reader.readBytes(dest, 0) != KrpcMessage.ID_LENGTH) {
+            throw new IllegalStateException("Id should be 20 bytes");
+        }
+    }
+
+    /**
+     * Compact peers, one per string; strings of another length than an IPv4 or IPv6 peer are ignored.
+     */
+    private void readValues(PeerList values) throws IOException {
+        reader.beginList();
+        while (reader.hasNext()) {
+            int length = reader.readBytes(scratch, 0);
+            if (length == PeerList.IPV4_LENGTH) {
+                values.decodeIPv4(scratch, 0, length);
+            } else if (length == PeerList.IPV6_LENGTH) {
+                values.decodeIPv6(scratch, 0, length);
+            }
+        }
+        reader.endList();
+    }
+
+    private void readError(KrpcMessage message) throws IOException {
+        reader.beginList();
+        if (reader.hasNext()) {
+            message.errorCode = (int) reader.readLong();
+        }
+        if (reader.hasNext()) {
+            message.errorMessage = reader.readString();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endList();
+    }
+
+    private static void check(KrpcMessage message, int seen) {
+        if (message.type == null) {
+            throw new IllegalStateException("Missing message type");
+        }
+        if ((seen & SEEN_TRANSACTION) == 0) {
+            throw new IllegalStateException("Missing transaction id");
+        }
+
+        int required;
+        switch (message.type) {
+            case QUERY:
+                if ((seen & SEEN_METHOD) == 0) {
+                    throw new IllegalStateException("Missing query method");
+                }
+                required = SEEN_ID;
+                if (message.method == KrpcMessage.Method.FIND_NODE) {
+                    required |= SEEN_TARGET;
+                } else if (message.method == KrpcMessage.Method.GET_PEERS) {
+                    required |= SEEN_INFO_HASH;
+                } else if (message.method == KrpcMessage.Method.ANNOUNCE_PEER) {
+                    required |= SEEN_INFO_HASH | SEEN_PORT | SEEN_TOKEN;
+                } else if (message.method == null) {
+                    required = 0;
+                }
+                break;
+            case RESPONSE:
+                required = SEEN_ID;
+                break;
+            default:
+                required = SEEN_ERROR;
+        }
+        if ((seen & required) != required) {
+            throw new IllegalStateException("Missing argument of " + message.type.name().toLowerCase());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.dht;
+
+import wtf.cowbay.libraven.compact.NodeList;
+import wtf.cowbay.libraven.compact.PeerList;
+
+/**
+ * A KRPC message of the DHT protocol (BEP 5): a query, a response or an error. Fields are public and
+ * preallocated so one instance can be {@link #clear() cleared} and refilled for every packet; variable
+ * length strings live in fixed arrays with a length. Which fields are meaningful depends on
+ * {@link #type} and {@link #method}, see {@link KrpcCodec}.
+ * <p/>
+ * Responses don't name their method; the caller matches them to a query by transaction id.
+ */
+public class KrpcMessage {
+    public enum Type {
+        QUERY, RESPONSE, ERROR
+    }
+
+    public enum Method {
+        PING("ping"), FIND_NODE("find_node"), GET_PEERS("get_peers"), ANNOUNCE_PEER("announce_peer");
+
+        final byte[] name;
+
+        Method(String name) {
+            this.name = name.getBytes();
+        }
+    }
+
+    public static final int ID_LENGTH = NodeList.ID_LENGTH;
+    public static final int MAX_TRANSACTION_ID_LENGTH = 32;
+    public static final int MAX_TOKEN_LENGTH = 64;
+    public static final int MAX_VERSION_LENGTH = 16;
+
+    public static final int ERROR_GENERIC = 201;
+    public static final int ERROR_SERVER = 202;
+    public static final int ERROR_PROTOCOL = 203;
+    public static final int ERROR_METHOD_UNKNOWN = 204;
+
+    public Type type;
+    /**
+     * Method of a query; null for a query of an unknown method.
+     */
+    public Method method;
+
+    public final byte[] transactionId = new byte[MAX_TRANSACTION_ID_LENGTH];
+    public int transactionIdLength;
+    /**
+     * Client version (<code>v</code>), not sent if empty.
+     */
+    public final byte[] version = new byte[MAX_VERSION_LENGTH];
+    public int versionLength;
+
+    /**
+     * Id of the sending node, in queries and responses.
+     */
+    public final byte[] id = new byte[ID_LENGTH];
+    /**
+     * Node looked for by <code>find_node</code>.
+     */
+    public final byte[] target = new byte[ID_LENGTH];
+    /**
+     * Torrent of <code>get_peers</code> and <code>announce_peer</code>.
+     */
+    public final byte[] infoHash = new byte[ID_LENGTH];
+    /**
+     * Token returned by <code>get_peers</code> and sent back with <code>announce_peer</code>.
+     */
+    public final byte[] token = new byte[MAX_TOKEN_LENGTH];
+    public int tokenLength;
+    public int port;
+    public boolean impliedPort;
+
+    /**
+     * Closest nodes of a <code>find_node</code> or <code>get_peers</code> response.
+     */
+    public final NodeList nodes = new NodeList();
+    /**
+     * Peers of a <code>get_peers</code> response.
+     */
+    public final PeerList values = new PeerList();
+
+    public int errorCode;
+    public String errorMessage;
+
+    public KrpcMessage() {
+        clear();
+    }
+
+    public void clear() {
+        type = null;
+        method = null;
+        transactionIdLength = 0;
+        versionLength = 0;
+        tokenLength = 0;
+        port = 0;
+        impliedPort = false;
+        nodes.clear();
+        values.clear();
+        errorCode = 0;
+        errorMessage = null;
+    }
+
+    /**
+     * Start a query, keeping no field of the previous message.
+     */
+    public KrpcMessage query(Method method, byte[] transactionId, int length) {
+        clear();
+        this.type = Type.QUERY;
+        this.method = method;
+        setTransactionId(transactionId, 0, length);
+        return this;
+    }
+
+    /**
+     * Start a response to <code>query</code>, with its transaction id.
+     */
+    public KrpcMessage response(KrpcMessage query) {
+        clear();
+        this.type = Type.RESPONSE;
+        setTransactionId(query.transactionId, 0, query.transactionIdLength);
+        return this;
+    }
+
+    /**
+     * Start an error in answer to <code>query</code>, with its transaction id.
+     */
+    public KrpcMessage error(KrpcMessage query, int code, String message) {
+        clear();
+        this.type = Type.ERROR;
+        setTransactionId(query.transactionId, 0, query.transactionIdLength);
+        this.errorCode = code;
+        this.errorMessage = message;
+        return this;
+    }
+
+    public void setTransactionId(byte[] bytes, int offset, int length) {
+        if (length > MAX_TRANSACTION_ID_LENGTH) {
+            throw new IllegalArgumentException("Transaction id too long: " + length + " bytes");
+        }
+        System.arraycopy(bytes, offset, transactionId, 0, length);
+        transactionIdLength = length;
+    }
+
+    public void setToken(byte[] bytes, int offset, int length) {
+        if (length > MAX_TOKEN_LENGTH) {
+            throw new IllegalArgumentException("Token too long: " + length + " bytes");
+        }
+        System.arraycopy(bytes, offset, token, 0, length);
+        tokenLength = length;
+    }
+
+    public void setVersion(byte[] bytes, int offset, int length) {
+        if (length > MAX_VERSION_LENGTH) {
+            throw new IllegalArgumentException("Version too long: " + length + " bytes");
+        }
+        System.arraycopy(bytes, offset, version, 0, length);
+        versionLength = length;
+    }
+
+    /**
+     * Whether the transaction id of this message equals the one of <code>other</code>.
+     */
+    public boolean sameTransaction(KrpcMessage other) {
+        if (transactionIdLength != other.transactionIdLength) {
+            return false;
+        }
+        for (int i = 0; i < transactionIdLength; i++) {
+            if (transactionId[i] != other.transactionId[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.metrics;
+
+/**
+ * Measurements of one decoded value. Dictionary keys are counted as strings.
+ */
+public class DecodeStats {
+    public long bytes;
+    public long nanos;
+    public long integers;
+    public long strings;
+    public long stringBytes;
+    public long lists;
+    public long dicts;
+    public int maxDepth;
+}
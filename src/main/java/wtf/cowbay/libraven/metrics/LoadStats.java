@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.metrics;
+
+/**
+ * Measurements of one loaded torrent.
+ */
+public class LoadStats {
+    public long bytes;
+    public long nanos; //whole load, info-hash included
+    public long hashNanos; //info-hash(es) only
+    public long infoBytes; //length of the info dictionary
+    public int files;
+    public int pieces;
+    public int announces;
+}
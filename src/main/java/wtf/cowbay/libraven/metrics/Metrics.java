@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.metrics;
+
+/**
+ * Process-wide installation point of a {@link MetricsListener}. Instrumented operations read the listener
+ * once when they start; while none is installed they take their plain path, without timing or counting.
+ */
+public class Metrics {
+    private static volatile MetricsListener listener;
+
+    private Metrics() {
+    }
+
+    /**
+     * Install <code>listener</code>, replacing the previous one; null disables metrics.
+     */
+    public static void setListener(MetricsListener listener) {
+        Metrics.listener = listener;
+    }
+
+    /**
+     * The installed listener, or null.
+     */
+    public static MetricsListener listener() {
+        return listener;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.metrics;
+
+/**
+ * Receives measurements of decoding, encoding and torrent loading, see {@link Metrics}. Methods are called
+ * on the thread doing the work, once per top-level operation; implementations must be thread-safe and
+ * quick.
+ */
+public interface MetricsListener {
+    enum Operation {
+        DECODE, ENCODE, LOAD
+    }
+
+    /**
+     * A value has been decoded by {@link wtf.cowbay.libraven.bencode.BDecoder}.
+     */
+    void decoded(DecodeStats stats);
+
+    /**
+     * A value has been encoded by {@link wtf.cowbay.libraven.bencode.BEncoder}.
+     *
+     * @param bytes encoded length
+     * @param nanos time spent
+     */
+    void encoded(long bytes, long nanos);
+
+    /**
+     * A torrent has been loaded by {@link wtf.cowbay.libraven.torrent.TorrentMeta}.
+     */
+    void torrentLoaded(LoadStats stats);
+
+    /**
+     * An operation failed with <code>cause</code>, which is thrown to the caller afterwards.
+     */
+    void failed(Operation operation, Throwable cause);
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MetricsListener} accumulating everything into counters, e.g. to be exported periodically
+ * through {@link #snapshot()}. Counters are atomic; a snapshot taken while operations complete may mix
+ * counts from before and after them.
+ *
+ * <pre>
+ * MetricsRegistry registry = new MetricsRegistry();
+ * Metrics.setListener(registry);
+ * </pre>
+ */
+public class MetricsRegistry implements MetricsListener {
+    private final AtomicLong decodes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLong integers = new AtomicLong();
+    private final AtomicLong strings = new AtomicLong();
+    private final AtomicLong stringBytes = new AtomicLong();
+    private final AtomicLong lists = new AtomicLong();
+    private final AtomicLong dicts = new AtomicLong();
+    private final AtomicLong maxDepth = new AtomicLong();
+
+    private final AtomicLong encodes = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadedBytes = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong hashNanos = new AtomicLong();
+    private final AtomicLong infoBytes = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong maxFiles = new AtomicLong();
+    private final AtomicLong pieces = new AtomicLong();
+    private final AtomicLong maxPieces = new AtomicLong();
+
+    private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+
+    public void decoded(DecodeStats stats) {
+        decodes.incrementAndGet();
+        decodedBytes.addAndGet(stats.bytes);
+        decodeNanos.addAndGet(stats.nanos);
+        integers.addAndGet(stats.integers);
+        strings.addAndGet(stats.strings);
+        stringBytes.addAndGet(stats.stringBytes);
+        lists.addAndGet(stats.lists);
+        dicts.addAndGet(stats.dicts);
+        max(maxDepth, stats.maxDepth);
+    }
+
+    public void encoded(long bytes, long nanos) {
+        encodes.incrementAndGet();
+        encodedBytes.addAndGet(bytes);
+        encodeNanos.addAndGet(nanos);
+    }
+
+    public void torrentLoaded(LoadStats stats) {
+        loads.incrementAndGet();
+        loadedBytes.addAndGet(stats.bytes);
+        loadNanos.addAndGet(stats.nanos);
+        hashNanos.addAndGet(stats.hashNanos);
+        infoBytes.addAndGet(stats.infoBytes);
+        files.addAndGet(stats.files);
+        max(maxFiles, stats.files);
+        pieces.addAndGet(stats.pieces);
+        max(maxPieces, stats.pieces);
+    }
+
+    /**
+     * Counted by operation and exception class, e.g. <code>load.java.io.IOException</code>.
+     */
+    public void failed(Operation operation, Throwable cause) {
+        String key = operation.name().toLowerCase() + "." + cause.getClass().getName();
+        AtomicLong count = failures.get(key);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = failures.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private static void max(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long decodes() {
+        return decodes.get();
+    }
+
+    public long decodedBytes() {
+        return decodedBytes.get();
+    }
+
+    public long encodes() {
+        return encodes.get();
+    }
+
+    public long encodedBytes() {
+        return encodedBytes.get();
+    }
+
+    public long loads() {
+        return loads.get();
+    }
+
+    public long hashNanos() {
+        return hashNanos.get();
+    }
+
+    /**
+     * Number of failures of <code>operation</code> with an exception of class <code>cause</code>.
+     */
+    public long failures(Operation operation, Class<? extends Throwable> cause) {
+        AtomicLong count = failures.get(operation.name().toLowerCase() + "." + cause.getName());
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Every counter by name, sorted; failures are named <code>failures.&lt;operation&gt;.&lt;class&gt;</code>.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        result.put("decode.count", decodes.get());
+        result.put("decode.bytes", decodedBytes.get());
+        result.put("decode.nanos", decodeNanos.get());
+        result.put("decode.integers", integers.get());
+        result.put("decode.strings", strings.get());
+        result.put("decode.stringBytes", stringBytes.get());
+        result.put("decode.lists", lists.get());
+        result.put("decode.dicts", dicts.get());
+        result.put("decode.maxDepth", maxDepth.get());
+        result.put("encode.count", encodes.get());
+        result.put("encode.bytes", encodedBytes.get());
+        result.put("encode.nanos", encodeNanos.get());
+        result.put("load.count", loads.get());
+        result.put("load.bytes", loadedBytes.get());
+        result.put("load.nanos", loadNanos.get());
+        result.put("load.hashNanos", hashNanos.get());
+        result.put("load.infoBytes", infoBytes.get());
+        result.put("load.files", files.get());
+        result.put("load.maxFiles", maxFiles.get());
+        result.put("load.pieces", pieces.get());
+        result.put("load.maxPieces", maxPieces.get());
+        for (Map.Entry<String, AtomicLong> entry : failures.entrySet()) {
+            result.put("failures." + entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+}
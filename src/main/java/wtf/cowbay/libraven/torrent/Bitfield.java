@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One bit per piece, laid out as in the BitTorrent <code>bitfield</code> message: piece 0 is the high bit
+ * of the first byte. Backed by a {@link ByteBuffer}, which may be a memory-mapped file. Thread-safe.
+ */
+public class Bitfield {
+    private final ByteBuffer bits;
+    private final int offset;
+    private final int size;
+
+    public Bitfield(int size) {
+        this(ByteBuffer.allocate((size + 7) / 8), size);
+    }
+
+    /**
+     * Use the <code>(size + 7) / 8</code> bytes of <code>bits</code> starting at its position as storage.
+     * The buffer is shared, not copied.
+     */
+    public Bitfield(ByteBuffer bits, int size) {
+        if (bits.remaining() < (size + 7) / 8) {
+            throw new IllegalArgumentException("Buffer too small for " + size + " bits");
+        }
+        this.bits = bits;
+        this.offset = bits.position();
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int index(int bit) {
+        if (bit < 0 || bit >= size) {
+            throw new IndexOutOfBoundsException("No bit " + bit);
+        }
+        return offset + (bit >>> 3);
+    }
+
+    public synchronized boolean get(int bit) {
+        return (bits.get(index(bit)) & (0x80 >>> (bit & 7))) != 0;
+    }
+
+    public synchronized void set(int bit) {
+        int i = index(bit);
+        bits.put(i, (byte) (bits.get(i) | (0x80 >>> (bit & 7))));
+    }
+
+    public synchronized void clear(int bit) {
+        int i = index(bit);
+        bits.put(i, (byte) (bits.get(i) & ~(0x80 >>> (bit & 7))));
+    }
+
+    public void set(int bit, boolean value) {
+        if (value) {
+            set(bit);
+        } else {
+            clear(bit);
+        }
+    }
+
+    /**
+     * Number of bits set.
+     */
+    public synchronized int cardinality() {
+        int count = 0;
+        for (int i = 0; i < (size + 7) / 8; i++) {
+            count += Integer.bitCount(bits.get(offset + i) & 0xFF);
+        }
+        return count;
+    }
+
+    public boolean isComplete() {
+        return cardinality() == size;
+    }
+
+    /**
+     * Copy of the bits in wire format.
+     */
+    public synchronized byte[] toByteArray() {
+        byte[] result = new byte[(size + 7) / 8];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bits.get(offset + i);
+        }
+        return result;
+    }
+}
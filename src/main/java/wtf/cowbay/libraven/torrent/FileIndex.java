@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import java.io.IOException;
+
+/**
+ * Maps pieces and byte ranges of a torrent's content to the files covering them. The files are laid out
+ * back to back; the cumulative offsets are precomputed so a lookup is a binary search and queries don't
+ * allocate.
+ *
+ * <pre>
+ * index.forEachSpan(piece, new FileIndex.SpanVisitor() {
+ *     public void span(int file, long fileOffset, long length) {
+ *         //read length bytes at fileOffset of file
+ *     }
+ * });
+ * </pre>
+ */
+public class FileIndex {
+    public interface SpanVisitor {
+        /**
+         * @param file       index of the file in <code>Info.files</code>
+         * @param fileOffset offset of the span within the file
+         * @param length     length of the span, never 0
+         */
+        void span(int file, long fileOffset, long length) throws IOException;
+    }
+
+    private final long[] offsets; //offsets[i] is where file i starts, offsets[n] the total length
+    private final long pieceLength;
+
+    public FileIndex(TorrentMeta.Info info) {
+        this(lengths(info), info.piece_len);
+    }
+
+    private static long[] lengths(TorrentMeta.Info info) {
+        long[] result = new long[info.files.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = info.files.get(i).length;
+        }
+        return result;
+    }
+
+    public FileIndex(long[] fileLengths, long pieceLength) {
+        if (pieceLength <= 0) {
+            throw new IllegalArgumentException("Piece length must be positive");
+        }
+        offsets = new long[fileLengths.length + 1];
+        for (int i = 0; i < fileLengths.length; i++) {
+            if (fileLengths[i] < 0) {
+                throw new IllegalArgumentException("Negative file length");
+            }
+            offsets[i + 1] = offsets[i] + fileLengths[i];
+        }
+        this.pieceLength = pieceLength;
+    }
+
+    public int fileCount() {
+        return offsets.length - 1;
+    }
+
+    public long totalLength() {
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * Offset of the first byte of <code>file</code> in the content.
+     */
+    public long fileOffset(int file) {
+        return offsets[file];
+    }
+
+    public long fileLength(int file) {
+        return offsets[file + 1] - offsets[file];
+    }
+
+    public long pieceLength() {
+        return pieceLength;
+    }
+
+    public int pieceCount() {
+        return (int) ((totalLength() + pieceLength - 1) / pieceLength);
+    }
+
+    public long pieceOffset(int piece) {
+        return piece * pieceLength;
+    }
+
+    /**
+     * Length of <code>piece</code>; only the last piece may be shorter than the piece length.
+     */
+    public long pieceSize(int piece) {
+        if (piece < 0 || piece >= pieceCount()) {
+            throw new IndexOutOfBoundsException("No piece " + piece);
+        }
+        return Math.min(pieceLength, totalLength() - piece * pieceLength);
+    }
+
+    /**
+     * Index of the file containing byte <code>pos</code> of the content. Zero-length files never contain
+     * any byte.
+     *
+     * @return index of the file, or -1 if <code>pos</code> is outside of the content
+     */
+    public int fileAt(long pos) {
+        if (pos < 0 || pos >= totalLength()) {
+            return -1;
+        }
+
+        //last file starting at or before pos, which skips zero-length files
+        int lo = 0;
+        int hi = fileCount() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * First piece containing a byte of <code>file</code>, or -1 for a zero-length file.
+     */
+    public int firstPiece(int file) {
+        return fileLength(file) == 0 ? -1 : (int) (offsets[file] / pieceLength);
+    }
+
+    /**
+     * Last piece containing a byte of <code>file</code>, or -1 for a zero-length file.
+     */
+    public int lastPiece(int file) {
+        return fileLength(file) == 0 ? -1 : (int) ((offsets[file + 1] - 1) / pieceLength);
+    }
+
+    /**
+     * Visit the file spans covering bytes <code>[from, to)</code> of the content, in order.
+     *
+     * @return number of spans visited
+     */
+    public int forEachSpan(long from, long to, SpanVisitor visitor) throws IOException {
+        if (from < 0 || to > totalLength() || from > to) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (from == to) {
+            return 0;
+        }
+
+        int spans = 0;
+        for (int file = fileAt(from); from < to; file++) {
+            long fileEnd = offsets[file + 1];
+            if (fileEnd <= from) {
+                continue;
+            }
+            long end = Math.min(to, fileEnd);
+            visitor.span(file, from - offsets[file], end - from);
+            spans++;
+            from = end;
+        }
+        return spans;
+    }
+
+    /**
+     * Visit the file spans covering <code>piece</code>, in order.
+     *
+     * @return number of spans visited
+     */
+    public int forEachSpan(int piece, SpanVisitor visitor) throws IOException {
+        long from = piece * pieceLength;
+        return forEachSpan(from, from + pieceSize(piece), visitor);
+    }
+}
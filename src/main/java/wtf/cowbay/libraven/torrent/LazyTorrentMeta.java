@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import wtf.cowbay.libraven.bencode.BencodeReader;
+import wtf.cowbay.libraven.bencode.ByteString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A torrent whose fields are decoded on demand. Loading scans the raw bytes once, recording where the
+ * value of every top-level and <code>info</code> key starts and computing the info-hash; <code>files</code>,
+ * <code>pieces</code>, <code>announce-list</code> and the other fields are only decoded when first accessed.
+ * The raw buffer is kept for as long as this object is alive.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+public class LazyTorrentMeta {
+    private static final ByteString INFO = new ByteString("info");
+    private static final ByteString ANNOUNCE = new ByteString("announce");
+    private static final ByteString ANNOUNCE_LIST = new ByteString("announce-list");
+    private static final ByteString CREATION_DATE = new ByteString("creation date");
+    private static final ByteString CREATED_BY = new ByteString("created by");
+    private static final ByteString COMMENT = new ByteString("comment");
+    private static final ByteString ENCODING = new ByteString("encoding");
+    private static final ByteString NAME = new ByteString("name");
+    private static final ByteString PIECE_LENGTH = new ByteString("piece length");
+    private static final ByteString PIECES = new ByteString("pieces");
+    private static final ByteString FILES = new ByteString("files");
+    private static final ByteString LENGTH = new ByteString("length");
+    private static final ByteString PRIVATE = new ByteString("private");
+
+    private final ByteBuffer data;
+    private final KeyIndex root = new KeyIndex();
+    private final KeyIndex info = new KeyIndex();
+    private String infoHash;
+
+    private String name;
+    private PieceHashes pieces;
+    private List<TorrentMeta.FileInfo> files;
+    private List<String> announces;
+
+    private LazyTorrentMeta(ByteBuffer data) {
+        this.data = data;
+    }
+
+    public static LazyTorrentMeta loadFromFile(String fileName) throws IOException {
+        return load(TorrentMeta.readFile(fileName));
+    }
+
+    public static LazyTorrentMeta load(byte[] bytes) throws IOException {
+        return load(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Index the remaining bytes of <code>buf</code>. The buffer must not be modified afterwards.
+     */
+    public static LazyTorrentMeta load(ByteBuffer buf) throws IOException {
+        LazyTorrentMeta meta = new LazyTorrentMeta(buf.slice());
+        meta.scan();
+        return meta;
+    }
+
+    private void scan() throws IOException {
+        BencodeReader reader = new BencodeReader(data);
+        MessageDigest sha1 = DigestUtils.getSha1Digest();
+
+        reader.beginDict();
+        while (reader.hasNext()) {
+            ByteString key = reader.readBytes();
+            root.add(key, (int) reader.position());
+
+            if (key.equals(INFO)) {
+                reader.startDigest(sha1);
+                reader.beginDict();
+                while (reader.hasNext()) {
+                    info.add(reader.readBytes(), (int) reader.position());
+                    reader.skipValue();
+                }
+                reader.endDict();
+                reader.stopDigest();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endDict();
+
+        ensureField(root, INFO);
+        ensureField(root, ANNOUNCE);
+        ensureField(info, NAME);
+        ensureField(info, PIECE_LENGTH);
+        ensureField(info, PIECES);
+        if (info.find(FILES) < 0) {
+            ensureField(info, LENGTH);
+        }
+
+        infoHash = Hex.encodeHexString(sha1.digest());
+    }
+
+    private static void ensureField(KeyIndex index, ByteString key) throws IOException {
+        if (index.find(key) < 0) {
+            throw new IOException("Invalid torrent file: " + key + " not existed");
+        }
+    }
+
+    private BencodeReader reader(int offset) {
+        ByteBuffer buf = data.duplicate();
+        buf.position(offset);
+        return new BencodeReader(buf);
+    }
+
+    private long readLong(KeyIndex index, ByteString key, long defaultValue) throws IOException {
+        int offset = index.find(key);
+        return offset < 0 ? defaultValue : reader(offset).readLong();
+    }
+
+    private String readString(KeyIndex index, ByteString key) throws IOException {
+        int offset = index.find(key);
+        return offset < 0 ? null : reader(offset).readString();
+    }
+
+    public String infoHash() {
+        return infoHash;
+    }
+
+    public String name() throws IOException {
+        if (name == null) {
+            String value = readString(info, NAME);
+            name = value == null ? null : TorrentMeta.checkComponent(value);
+        }
+        return name;
+    }
+
+    public long pieceLength() throws IOException {
+        return readLong(info, PIECE_LENGTH, 0);
+    }
+
+    public boolean isPrivate() throws IOException {
+        return readLong(info, PRIVATE, 0) == 1;
+    }
+
+    public PieceHashes pieces() throws IOException {
+        if (pieces == null) {
+            pieces = TorrentMeta.readPieces(reader(info.find(PIECES)).readBytes());
+        }
+        return pieces;
+    }
+
+    public List<TorrentMeta.FileInfo> files() throws IOException {
+        if (files == null) {
+            if (info.find(FILES) >= 0) {
+                files = TorrentMeta.FILE_SCHEMA.readList(reader(info.find(FILES)));
+            } else {
+                TorrentMeta.FileInfo fileInfo = new TorrentMeta.FileInfo();
+                fileInfo.length = readLong(info, LENGTH, 0);
+                fileInfo.path = name();
+
+                files = new ArrayList<TorrentMeta.FileInfo>(1);
+                files.add(fileInfo);
+            }
+        }
+        return files;
+    }
+
+    public List<String> announces() throws IOException {
+        if (announces == null) {
+            announces = new ArrayList<String>();
+            TorrentMeta.readAnnounce(reader(root.find(ANNOUNCE)), announces);
+            if (root.find(ANNOUNCE_LIST) >= 0) {
+                TorrentMeta.readAnnounceList(reader(root.find(ANNOUNCE_LIST)), announces);
+            }
+        }
+        return announces;
+    }
+
+    public long created() throws IOException {
+        return readLong(root, CREATION_DATE, 0);
+    }
+
+    public String createdBy() throws IOException {
+        return readString(root, CREATED_BY);
+    }
+
+    public String comment() throws IOException {
+        return readString(root, COMMENT);
+    }
+
+    public String encoding() throws IOException {
+        return readString(root, ENCODING);
+    }
+
+    /**
+     * Decode every field into a {@link TorrentMeta}.
+     */
+    public TorrentMeta toTorrentMeta() throws IOException {
+        TorrentMeta meta = new TorrentMeta();
+        meta.info.name = name();
+        meta.info.piece_len = pieceLength();
+        meta.info.pieces = pieces();
+        meta.info.isPrivate = isPrivate();
+        meta.info.isMultiFile = info.find(FILES) >= 0;
+        meta.info.files = files();
+        meta.announces = announces();
+        meta.created = created();
+        meta.createdBy = createdBy();
+        meta.comment = comment();
+        meta.encoding = encoding();
+        meta.infoHash = infoHash;
+        return meta;
+    }
+
+    /**
+     * Keys of a dictionary (as views over the raw buffer) and the offsets of their values.
+     */
+    private static class KeyIndex {
+        private ByteString[] keys = new ByteString[8];
+        private int[] offsets = new int[8];
+        private int size = 0;
+
+        void add(ByteString key, int offset) {
+            if (size == keys.length) {
+                ByteString[] newKeys = new ByteString[size * 2];
+                int[] newOffsets = new int[size * 2];
+                System.arraycopy(keys, 0, newKeys, 0, size);
+                System.arraycopy(offsets, 0, newOffsets, 0, size);
+                keys = newKeys;
+                offsets = newOffsets;
+            }
+            keys[size] = key;
+            offsets[size] = offset;
+            size++;
+        }
+
+        int find(ByteString key) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(key)) {
+                    return offsets[i];
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The files of a torrent seen as one contiguous, read-only byte range, read through memory-mapped regions.
+ * Regions are mapped on first use and shared between threads. A file is opened only while one of its
+ * regions is mapped, so torrents of any number of files hold no descriptors open.
+ */
+class MappedContent {
+    private static final long REGION_SIZE = 1 << 30;
+
+    private final FileIndex index;
+    private final File[] files; //null if the file is missing or too short
+    private final MappedByteBuffer[][] regions;
+
+    MappedContent(File[] files, FileIndex index) {
+        int n = files.length;
+        this.index = index;
+        this.files = new File[n];
+        regions = new MappedByteBuffer[n][];
+
+        for (int i = 0; i < n; i++) {
+            long length = index.fileLength(i);
+            regions[i] = new MappedByteBuffer[(int) ((length + REGION_SIZE - 1) / REGION_SIZE)];
+            if (files[i].isFile() && files[i].length() >= length) {
+                this.files[i] = files[i];
+            }
+        }
+    }
+
+    /**
+     * Where the files of a torrent are expected under <code>root</code>: <code>root/name</code> in single
+     * file mode, <code>root/name/path</code> in multiple file mode.
+     *
+     * @throws IOException if a name or path component would lead outside of <code>root</code>
+     */
+    static File[] locate(TorrentMeta.Info info, File root) throws IOException {
+        TorrentMeta.checkComponent(info.name);
+        List<TorrentMeta.FileInfo> files = info.files;
+        File[] result = new File[files.size()];
+        for (int i = 0; i < result.length; i++) {
+            if (info.isMultiFile) {
+                String path = files.get(i).path;
+                for (String component : path.split("/", -1)) {
+                    TorrentMeta.checkComponent(component);
+                }
+                result[i] = new File(new File(root, info.name), path);
+            } else {
+                result[i] = new File(root, info.name);
+            }
+        }
+        return result;
+    }
+
+    FileIndex index() {
+        return index;
+    }
+
+    private MappedByteBuffer region(int file, int n) throws IOException {
+        MappedByteBuffer[] fileRegions = regions[file];
+        synchronized (fileRegions) {
+            if (fileRegions[n] == null) {
+                long start = n * REGION_SIZE;
+                long size = Math.min(REGION_SIZE, index.fileLength(file) - start);
+                FileChannel channel = new RandomAccessFile(files[file], "r").getChannel();
+                try {
+                    fileRegions[n] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                } finally {
+                    channel.close(); //the mapping stays valid
+                }
+            }
+            return fileRegions[n];
+        }
+    }
+
+    /**
+     * Feed bytes <code>[from, from + length)</code> of the content into <code>digest</code>.
+     *
+     * @return false if part of the range lies in a missing or truncated file
+     */
+    boolean digest(long from, long length, MessageDigest digest) throws IOException {
+        if (from < 0 || length < 0 || from + length > index.totalLength()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        long pos = from;
+        long end = from + length;
+        for (int file = index.fileAt(pos); pos < end; file++) {
+            long fileStart = index.fileOffset(file);
+            long fileEnd = fileStart + index.fileLength(file);
+            if (fileEnd <= pos) {
+                continue;
+            }
+            if (files[file] == null) {
+                return false;
+            }
+
+            long inFile = pos - fileStart;
+            long stop = Math.min(end, fileEnd) - fileStart;
+            while (inFile < stop) {
+                int n = (int) (inFile / REGION_SIZE);
+                int regionStart = (int) (inFile - n * REGION_SIZE);
+                int regionStop = (int) Math.min(stop - n * REGION_SIZE, REGION_SIZE);
+
+                ByteBuffer span = region(file, n).duplicate();
+                span.limit(regionStop).position(regionStart);
+                digest.update(span);
+                inFile += regionStop - regionStart;
+            }
+            pos = fileStart + stop;
+        }
+        return true;
+    }
+
+    /**
+     * Drop the mapped regions, so they can be unmapped once collected.
+     */
+    void close() {
+        for (MappedByteBuffer[] fileRegions : regions) {
+            synchronized (fileRegions) {
+                Arrays.fill(fileRegions, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SHA-256 Merkle tree over the 16 KiB blocks of a file, as in BitTorrent v2 (BEP 52). Leaves are the
+ * hashes of the blocks (the last one may be short); the tree is padded to a power of two leaves with
+ * zero hashes. The root is the <code>pieces root</code> of the file and the layer where one node covers
+ * a piece is its entry in <code>piece layers</code>.
+ * <p/>
+ * A block can be checked on its own with {@link #verify(ByteBuffer, int, byte[], byte[])}, given the
+ * sibling hashes on its path (a proof) and the root, or the hash of the piece containing it.
+ */
+public class MerkleTree {
+    public static final int BLOCK_SIZE = 16 * 1024;
+    public static final int HASH_LENGTH = 32;
+
+    private static final int CHUNK_BLOCKS = 256; //blocks per work item when hashing files
+
+    private final byte[][] layers; //layers[0] are the leaves, layers[height()] the root
+    private final int blocks;
+
+    /**
+     * Build the tree over concatenated block hashes.
+     *
+     * @param leaves hashes of the <code>blocks</code> blocks, <code>HASH_LENGTH</code> bytes each
+     */
+    public MerkleTree(byte[] leaves, int blocks) {
+        if (blocks < 1 || leaves.length < blocks * HASH_LENGTH) {
+            throw new IllegalArgumentException("At least one block is needed");
+        }
+        this.blocks = blocks;
+
+        int width = 1;
+        int height = 0;
+        while (width < blocks) {
+            width <<= 1;
+            height++;
+        }
+
+        layers = new byte[height + 1][];
+        layers[0] = new byte[width * HASH_LENGTH]; //padding leaves stay zero
+        System.arraycopy(leaves, 0, layers[0], 0, blocks * HASH_LENGTH);
+
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        for (int h = 1; h <= height; h++) {
+            byte[] below = layers[h - 1];
+            byte[] layer = new byte[below.length / 2];
+            for (int i = 0; i < layer.length; i += HASH_LENGTH) {
+                sha256.update(below, 2 * i, 2 * HASH_LENGTH);
+                digest(sha256, layer, i);
+            }
+            layers[h] = layer;
+        }
+    }
+
+    /**
+     * Build the tree over the remaining bytes of <code>data</code>, which must not be empty.
+     */
+    public static MerkleTree of(ByteBuffer data) {
+        int blocks = (data.remaining() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        byte[] leaves = new byte[blocks * HASH_LENGTH];
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        ByteBuffer block = data.duplicate();
+        for (int i = 0; i < blocks; i++) {
+            int start = data.position() + i * BLOCK_SIZE;
+            block.limit(Math.min(data.limit(), start + BLOCK_SIZE)).position(start);
+            sha256.update(block);
+            digest(sha256, leaves, i * HASH_LENGTH);
+        }
+        return new MerkleTree(leaves, blocks);
+    }
+
+    /**
+     * Build the trees of several files in parallel, with the blocks of large files hashed in parallel too.
+     *
+     * @return the tree of each file, null for empty files
+     */
+    public static MerkleTree[] of(final File[] files, int threads) throws IOException {
+        long[] lengths = new long[files.length];
+        final byte[][] leaves = new byte[files.length][];
+        final List<long[]> chunks = new ArrayList<long[]>(); //file, first block, blocks
+        for (int i = 0; i < files.length; i++) {
+            if (!files[i].isFile()) {
+                throw new IOException(files[i] + " not existed");
+            }
+            lengths[i] = files[i].length();
+            long blocks = (lengths[i] + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            if (blocks * HASH_LENGTH > Integer.MAX_VALUE) {
+                throw new IOException(files[i] + " is too large");
+            }
+            leaves[i] = new byte[(int) blocks * HASH_LENGTH];
+            for (long b = 0; b < blocks; b += CHUNK_BLOCKS) {
+                chunks.add(new long[]{i, b, Math.min(CHUNK_BLOCKS, blocks - b)});
+            }
+        }
+
+        final FileIndex index = new FileIndex(lengths, BLOCK_SIZE);
+        final MappedContent content = new MappedContent(files, index);
+        try {
+            PieceHasher.run(chunks.size(), threads, "SHA-256", new PieceHasher.Task() {
+                public void hash(int item, MessageDigest sha256, byte[] hash) throws Exception {
+                    long[] chunk = chunks.get(item);
+                    int file = (int) chunk[0];
+                    for (long b = chunk[1]; b < chunk[1] + chunk[2]; b++) {
+                        long offset = b * BLOCK_SIZE;
+                        long length = Math.min(BLOCK_SIZE, index.fileLength(file) - offset);
+                        sha256.reset();
+                        if (!content.digest(index.fileOffset(file) + offset, length, sha256)) {
+                            throw new IOException("File changed while hashing");
+                        }
+                        digest(sha256, leaves[file], (int) b * HASH_LENGTH);
+                    }
+                }
+            });
+        } finally {
+            content.close();
+        }
+
+        MerkleTree[] result = new MerkleTree[files.length];
+        for (int i = 0; i < files.length; i++) {
+            if (leaves[i].length > 0) {
+                result[i] = new MerkleTree(leaves[i], leaves[i].length / HASH_LENGTH);
+            }
+        }
+        return result;
+    }
+
+    private static void digest(MessageDigest digest, byte[] dest, int offset) {
+        byte[] hash = digest.digest();
+        System.arraycopy(hash, 0, dest, offset, HASH_LENGTH);
+    }
+
+    public int blockCount() {
+        return blocks;
+    }
+
+    /**
+     * Number of layers above the leaves.
+     */
+    public int height() {
+        return layers.length - 1;
+    }
+
+    public byte[] root() {
+        return layers[height()].clone();
+    }
+
+    /**
+     * Hashes of the nodes covering the file at <code>height</code> above the leaves, concatenated; nodes
+     * covering only padding are left out.
+     */
+    public byte[] layer(int height) {
+        if (height < 0 || height > height()) {
+            throw new IndexOutOfBoundsException("No layer " + height);
+        }
+        int nodes = ((blocks - 1) >> height) + 1;
+        byte[] result = new byte[nodes * HASH_LENGTH];
+        System.arraycopy(layers[height], 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * The <code>piece layers</code> entry of the file: one hash per piece. Files not larger than one piece
+     * have none, their root being their only piece hash.
+     *
+     * @param pieceLength piece length, a power of two of at least <code>BLOCK_SIZE</code>
+     */
+    public byte[] pieceLayer(long pieceLength) {
+        int h = pieceHeight(pieceLength);
+        return h >= height() ? new byte[0] : layer(h);
+    }
+
+    static int pieceHeight(long pieceLength) {
+        if (pieceLength < BLOCK_SIZE || (pieceLength & (pieceLength - 1)) != 0) {
+            throw new IllegalArgumentException("Piece length must be a power of two of at least 16 KiB");
+        }
+        return Long.numberOfTrailingZeros(pieceLength / BLOCK_SIZE);
+    }
+
+    public byte[] proof(int block) {
+        return proof(block, height());
+    }
+
+    /**
+     * Sibling hashes on the path from <code>block</code> up <code>levels</code> layers, bottom first;
+     * with <code>levels</code> the piece height, the proof leads to the hash of the piece.
+     */
+    public byte[] proof(int block, int levels) {
+        if (block < 0 || block >= blocks) {
+            throw new IndexOutOfBoundsException("No block " + block);
+        }
+        if (levels < 0 || levels > height()) {
+            throw new IllegalArgumentException("Tree has " + height() + " levels");
+        }
+        byte[] result = new byte[levels * HASH_LENGTH];
+        int node = block;
+        for (int h = 0; h < levels; h++) {
+            System.arraycopy(layers[h], (node ^ 1) * HASH_LENGTH, result, h * HASH_LENGTH, HASH_LENGTH);
+            node >>= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Check the remaining bytes of <code>block</code> against a root or piece hash.
+     *
+     * @param index index of the block below the node <code>expected</code> belongs to (within the piece
+     *              when checking against a piece hash)
+     * @param proof sibling hashes from {@link #proof(int, int)}
+     */
+    public static boolean verify(ByteBuffer block, int index, byte[] proof, byte[] expected) {
+        if (proof.length % HASH_LENGTH != 0 || index >>> (proof.length / HASH_LENGTH) != 0) {
+            return false;
+        }
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        sha256.update(block.duplicate());
+        byte[] hash = sha256.digest();
+
+        for (int i = 0; i < proof.length; i += HASH_LENGTH) {
+            if ((index & 1) == 0) {
+                sha256.update(hash);
+                sha256.update(proof, i, HASH_LENGTH);
+            } else {
+                sha256.update(proof, i, HASH_LENGTH);
+                sha256.update(hash);
+            }
+            hash = sha256.digest();
+            index >>= 1;
+        }
+        return MessageDigest.isEqual(hash, expected);
+    }
+
+    /**
+     * Root of a tree given its <code>count</code> nodes at <code>height</code> above the leaves
+     * (concatenated), padded to a power of two with the hashes of all-padding subtrees. Checks a
+     * <code>piece layers</code> entry against its <code>pieces root</code>.
+     */
+    public static byte[] root(byte[] nodes, int count, int height) {
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        byte[] pad = new byte[HASH_LENGTH];
+        for (int h = 0; h < height; h++) {
+            sha256.update(pad);
+            sha256.update(pad);
+            pad = sha256.digest();
+        }
+
+        int width = 1;
+        while (width < count) {
+            width <<= 1;
+        }
+        byte[] layer = new byte[width * HASH_LENGTH];
+        System.arraycopy(nodes, 0, layer, 0, count * HASH_LENGTH);
+        for (int i = count; i < width; i++) {
+            System.arraycopy(pad, 0, layer, i * HASH_LENGTH, HASH_LENGTH);
+        }
+
+        while (width > 1) {
+            width >>= 1;
+            byte[] above = new byte[width * HASH_LENGTH];
+            for (int i = 0; i < width; i++) {
+                sha256.update(layer, 2 * i * HASH_LENGTH, 2 * HASH_LENGTH);
+                digest(sha256, above, i * HASH_LENGTH);
+            }
+            layer = above;
+        }
+        return layer;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import wtf.cowbay.libraven.bencode.BencodeReader;
+import wtf.cowbay.libraven.bencode.ByteString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assembles the <code>info</code> dictionary of a torrent from the 16 KiB blocks of the metadata
+ * extension (BEP 9), e.g. when starting from a magnet link. Blocks may arrive in any order and are
+ * written straight into one buffer of the announced size; the SHA-1 is updated as soon as a run of blocks
+ * from the start is complete, so verification only hashes the tail once the last block arrives. The
+ * {@link TorrentMeta.Info} is then decoded from that buffer.
+ * <p/>
+ * Thread-safe, blocks may be added from several connections.
+ */
+public class MetadataAssembler {
+    public static final int BLOCK_SIZE = 16 * 1024;
+    private static final int MAX_SIZE = 64 * 1024 * 1024; //larger metadata is not plausible
+
+    private final byte[] infoHash;
+    private final byte[] data;
+    private final boolean[] received;
+    private int receivedCount = 0;
+    private int hashed = 0; //blocks from the start fed into sha1
+    private final MessageDigest sha1 = DigestUtils.getSha1Digest();
+    private boolean complete = false;
+
+    /**
+     * @param infoHash expected 20-byte info-hash
+     * @param size     <code>metadata_size</code> announced by the peer
+     */
+    public MetadataAssembler(byte[] infoHash, int size) {
+        if (infoHash.length != PieceHashes.SHA1_LENGTH) {
+            throw new IllegalArgumentException("Info-hash should be 20 bytes");
+        }
+        if (size <= 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid metadata size " + size);
+        }
+        this.infoHash = infoHash.clone();
+        this.data = new byte[size];
+        this.received = new boolean[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+    }
+
+    public int size() {
+        return data.length;
+    }
+
+    public int blockCount() {
+        return received.length;
+    }
+
+    public int blockLength(int block) {
+        if (block < 0 || block >= received.length) {
+            throw new IndexOutOfBoundsException("No block " + block);
+        }
+        return Math.min(BLOCK_SIZE, data.length - block * BLOCK_SIZE);
+    }
+
+    public synchronized boolean hasBlock(int block) {
+        blockLength(block);
+        return received[block];
+    }
+
+    /**
+     * First block not received yet, to be requested next.
+     *
+     * @return index of the block, or -1 if every block has been received
+     */
+    public synchronized int nextMissing() {
+        for (int i = hashed; i < received.length; i++) {
+            if (!received[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean add(int block, byte[] bytes) throws IOException {
+        return add(block, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Store the remaining bytes of <code>buf</code> as <code>block</code>. Blocks already received are
+     * ignored.
+     *
+     * @return true once every block has been received and the metadata matches the info-hash
+     * @throws IOException if the metadata is complete but doesn't match the info-hash; every block is then
+     *                     discarded so the metadata can be fetched again
+     */
+    public synchronized boolean add(int block, ByteBuffer buf) throws IOException {
+        int length = blockLength(block);
+        if (buf.remaining() != length) {
+            throw new IllegalArgumentException("Block " + block + " should be " + length + " bytes");
+        }
+        if (complete || received[block]) {
+            return complete;
+        }
+
+        buf.duplicate().get(data, block * BLOCK_SIZE, length);
+        received[block] = true;
+        receivedCount++;
+
+        while (hashed < received.length && received[hashed]) {
+            sha1.update(data, hashed * BLOCK_SIZE, blockLength(hashed));
+            hashed++;
+        }
+
+        if (receivedCount == received.length) {
+            if (!MessageDigest.isEqual(sha1.digest(), infoHash)) {
+                reset();
+                throw new IOException("Metadata does not match info-hash " + Hex.encodeHexString(infoHash));
+            }
+            complete = true;
+        }
+        return complete;
+    }
+
+    private void reset() {
+        for (int i = 0; i < received.length; i++) {
+            received[i] = false;
+        }
+        receivedCount = 0;
+        hashed = 0;
+        sha1.reset();
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * The verified metadata, a bencoded info dictionary, as a view over the buffer.
+     */
+    public synchronized ByteString metadata() {
+        ensureComplete();
+        return ByteString.wrap(data, 0, data.length);
+    }
+
+    /**
+     * Decode the verified metadata. Piece hashes are copied out of the buffer, strings are decoded from it.
+     */
+    public synchronized TorrentMeta.Info info() throws IOException {
+        ensureComplete();
+        return TorrentMeta.INFO_SCHEMA.read(new BencodeReader(data));
+    }
+
+    /**
+     * A torrent of the verified metadata, announced to <code>trackers</code> (e.g. those of the magnet
+     * link).
+     */
+    public TorrentMeta toTorrentMeta(List<String> trackers) throws IOException {
+        TorrentMeta meta = new TorrentMeta();
+        meta.info = info();
+        meta.announces = new ArrayList<String>(trackers);
+        meta.infoHash = Hex.encodeHexString(infoHash);
+        if (meta.info.metaVersion >= 2) {
+            meta.infoHashV2 = DigestUtils.sha256Hex(data);
+        }
+        return meta;
+    }
+
+    private void ensureComplete() {
+        if (!complete) {
+            throw new IllegalStateException("Metadata is not complete");
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a piece hashing task over a range of work items on a fixed pool. Workers pull the next item from a
+ * shared counter, so slow items don't hold the others back, and each worker has its own digest (SHA-1
+ * unless told otherwise) and hash buffer.
+ */
+class PieceHasher {
+    interface Task {
+        /**
+         * @param item index of the work item, from 0 to the number of items
+         * @param digest digest of the worker, to be reset before use
+         * @param hash   buffer of the worker for the resulting hash
+         */
+        void hash(int item, MessageDigest digest, byte[] hash) throws Exception;
+    }
+
+    static void run(int items, int threads, Task task) throws IOException {
+        run(items, threads, "SHA-1", task);
+    }
+
+    static void run(final int items, int threads, final String algorithm, final Task task) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        int workers = Math.max(1, Math.min(threads, items));
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int w = 0; w < workers; w++) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        MessageDigest digest = DigestUtils.getDigest(algorithm);
+                        byte[] hash = new byte[digest.getDigestLength()];
+
+                        int i;
+                        //stop early once another worker failed and the pool is shut down
+                        while (!Thread.currentThread().isInterrupted() && (i = next.getAndIncrement()) < items) {
+                            task.hash(i, digest, hash);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Hashing interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Hashing failed", cause);
+        } finally {
+            executor.shutdownNow();
+            //no worker may touch the content once the caller closes it
+            boolean interrupted = false;
+            while (!executor.isTerminated()) {
+                try {
+                    executor.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import wtf.cowbay.libraven.bencode.ByteString;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Piece hashes of a torrent, packed back to back in one contiguous array or (off-heap) buffer instead of
+ * one object per piece.
+ */
+public class PieceHashes {
+    public static final int SHA1_LENGTH = 20;
+
+    private final byte[] array;      //backing array, null if backed by a buffer
+    private final ByteBuffer buffer; //backing buffer, null if backed by an array
+    private final int offset;
+    private final int hashLength;
+    private final int count;
+
+    /**
+     * Wrap concatenated 20-byte SHA-1 hashes. The array is not copied.
+     */
+    public PieceHashes(byte[] hashes) {
+        this(hashes, SHA1_LENGTH);
+    }
+
+    public PieceHashes(byte[] hashes, int hashLength) {
+        this(hashes, null, 0, hashes.length, hashLength);
+    }
+
+    /**
+     * Wrap the remaining bytes of <code>hashes</code>, e.g. a direct buffer to keep the hashes off-heap.
+     * The buffer is not copied.
+     */
+    public PieceHashes(ByteBuffer hashes, int hashLength) {
+        this(null, hashes.slice(), 0, hashes.remaining(), hashLength);
+    }
+
+    private PieceHashes(byte[] array, ByteBuffer buffer, int offset, int length, int hashLength) {
+        if (hashLength <= 0 || length % hashLength != 0) {
+            throw new IllegalArgumentException("length of hashes must be multiples of " + hashLength);
+        }
+        this.array = array;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.hashLength = hashLength;
+        this.count = length / hashLength;
+    }
+
+    /**
+     * Copy concatenated hashes into one new array.
+     */
+    public static PieceHashes copyOf(ByteString hashes, int hashLength) {
+        return new PieceHashes(hashes.value(), hashLength);
+    }
+
+    /**
+     * Copy concatenated hashes into one new direct (off-heap) buffer.
+     */
+    public static PieceHashes copyOfDirect(ByteString hashes, int hashLength) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(hashes.length());
+        hashes.copyTo(buf);
+        buf.flip();
+        return new PieceHashes(buf, hashLength);
+    }
+
+    /**
+     * Number of pieces.
+     */
+    public int count() {
+        return count;
+    }
+
+    public int hashLength() {
+        return hashLength;
+    }
+
+    private int start(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("No piece " + index);
+        }
+        return offset + index * hashLength;
+    }
+
+    /**
+     * Copy the hash of piece <code>index</code> into <code>dest</code>.
+     */
+    public void hashAt(int index, byte[] dest, int destOffset) {
+        int start = start(index);
+        if (array != null) {
+            System.arraycopy(array, start, dest, destOffset, hashLength);
+        } else {
+            for (int i = 0; i < hashLength; i++) {
+                dest[destOffset + i] = buffer.get(start + i);
+            }
+        }
+    }
+
+    /**
+     * Read-only view over the hash of piece <code>index</code>.
+     */
+    public ByteString hashAt(int index) {
+        int start = start(index);
+        return array != null ? ByteString.wrap(array, start, hashLength) : ByteString.wrap(buffer, start, hashLength);
+    }
+
+    public boolean matches(int index, byte[] digest) {
+        return digest.length == hashLength && matches(index, digest, 0);
+    }
+
+    /**
+     * Whether the hash of piece <code>index</code> equals the <code>hashLength()</code> bytes of
+     * <code>digest</code> starting at <code>digestOffset</code>.
+     */
+    public boolean matches(int index, byte[] digest, int digestOffset) {
+        int start = start(index);
+        if (array != null) {
+            for (int i = 0; i < hashLength; i++) {
+                if (array[start + i] != digest[digestOffset + i]) {
+                    return false;
+                }
+            }
+        } else {
+            for (int i = 0; i < hashLength; i++) {
+                if (buffer.get(start + i) != digest[digestOffset + i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read-only view over all hashes, concatenated.
+     */
+    public ByteString bytes() {
+        int length = count * hashLength;
+        return array != null ? ByteString.wrap(array, offset, length) : ByteString.wrap(buffer, offset, length);
+    }
+
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PieceHashes)) {
+            return false;
+        }
+        PieceHashes other = (PieceHashes) obj;
+        return other.hashLength == hashLength && other.bytes().equals(bytes());
+    }
+
+    public int hashCode() {
+        return bytes().hashCode();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the data of a torrent on disk against its piece hashes. The files are memory-mapped and pieces
+ * are hashed in parallel, one {@link MessageDigest} per worker thread; pieces spanning several files are
+ * hashed across the file boundaries. Missing or truncated files make the pieces they cover fail.
+ */
+public class PieceVerifier {
+    public interface Listener {
+        /**
+         * Called from a worker thread each time a piece has been checked.
+         *
+         * @param piece   index of the piece
+         * @param valid   whether the data matches the piece hash
+         * @param checked number of pieces checked so far
+         * @param total   number of pieces to check
+         */
+        void pieceChecked(int piece, boolean valid, int checked, int total);
+    }
+
+    private final TorrentMeta meta;
+    private final File root;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Listener listener;
+
+    /**
+     * @param meta torrent to verify
+     * @param root directory containing the torrent's file (single file mode) or directory (multiple file mode)
+     */
+    public PieceVerifier(TorrentMeta meta, File root) {
+        this.meta = meta;
+        this.root = root;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.threads = threads;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Hash every piece.
+     *
+     * @return bitfield with the bits of valid pieces set
+     */
+    public Bitfield verify() throws IOException {
+        int count = meta.info.pieces.count();
+        int[] pieces = new int[count];
+        for (int i = 0; i < count; i++) {
+            pieces[i] = i;
+        }
+        return verify(pieces, new Bitfield(count));
+    }
+
+    /**
+     * Hash the given pieces only, setting or clearing their bits in <code>result</code>.
+     */
+    Bitfield verify(final int[] pieces, final Bitfield result) throws IOException {
+        final TorrentMeta.Info info = meta.info;
+        final MappedContent content = new MappedContent(MappedContent.locate(info, root), new FileIndex(info));
+        final AtomicInteger checked = new AtomicInteger();
+        try {
+            PieceHasher.run(pieces.length, threads, new PieceHasher.Task() {
+                public void hash(int item, MessageDigest sha1, byte[] hash) throws Exception {
+                    int piece = pieces[item];
+                    boolean valid = check(content, info, piece, sha1, hash);
+                    result.set(piece, valid);
+                    if (listener != null) {
+                        listener.pieceChecked(piece, valid, checked.incrementAndGet(), pieces.length);
+                    }
+                }
+            });
+        } finally {
+            content.close();
+        }
+        return result;
+    }
+
+    private static boolean check(MappedContent content, TorrentMeta.Info info, int piece, MessageDigest sha1, byte[] hash) throws IOException, DigestException {
+        FileIndex index = content.index();
+        if (piece >= index.pieceCount()) {
+            return false;
+        }
+
+        sha1.reset();
+        if (!content.digest(index.pieceOffset(piece), index.pieceSize(piece), sha1)) {
+            return false;
+        }
+        sha1.digest(hash, 0, hash.length);
+        return info.pieces.matches(piece, hash);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import org.apache.commons.codec.DecoderException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fast-resume state of one torrent: which pieces are known to be good, and the size and modification
+ * time each file had when that was last recorded. Everything lives in a memory-mapped file, so marking a
+ * piece is a single byte write and survives a crash of the process.
+ * <p/>
+ * Layout of the file, big-endian:
+ * <pre>
+ * int     magic, version
+ * byte[20] info-hash
+ * int     piece count, file count
+ * long[2] size and mtime of each file, size -1 if unknown
+ * byte[]  bitfield, as in the bitfield message
+ * </pre>
+ */
+public class ResumeState {
+    private static final int MAGIC = 0x4c525653; //"LRVS"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 4 + 4 + 20 + 4 + 4;
+
+    private final TorrentMeta meta;
+    private final File root;
+    private final File[] files;
+    private final FileIndex index;
+    private final MappedByteBuffer buf;
+    private final Bitfield bitfield;
+
+    ResumeState(File stateFile, TorrentMeta meta, File root) throws IOException {
+        this.meta = meta;
+        this.root = root;
+        this.files = MappedContent.locate(meta.info, root);
+        this.index = new FileIndex(meta.info);
+
+        int pieceCount = meta.info.pieces.count();
+        int fileCount = files.length;
+        long length = HEADER_LENGTH + 16L * fileCount + (pieceCount + 7) / 8;
+        byte[] infoHash;
+        try {
+            infoHash = meta.infoHash();
+        } catch (DecoderException e) {
+            throw new IOException("Invalid info-hash " + meta.infoHash);
+        }
+
+        boolean exists = stateFile.isFile() && stateFile.length() == length;
+        FileChannel channel = new RandomAccessFile(stateFile, "rw").getChannel();
+        try {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            channel.close(); //the mapping stays valid, and no descriptor is held per torrent
+        }
+
+        if (!exists || !matches(infoHash, pieceCount, fileCount)) {
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, VERSION);
+            for (int i = 0; i < infoHash.length; i++) {
+                buf.put(8 + i, infoHash[i]);
+            }
+            buf.putInt(28, pieceCount);
+            buf.putInt(32, fileCount);
+            for (int i = 0; i < fileCount; i++) {
+                buf.putLong(sizeOffset(i), -1);
+                buf.putLong(sizeOffset(i) + 8, 0);
+            }
+            for (int i = bitsOffset(); i < length; i++) {
+                buf.put(i, (byte) 0);
+            }
+        }
+
+        ByteBuffer bits = buf.duplicate();
+        bits.position(bitsOffset());
+        bitfield = new Bitfield(bits, pieceCount);
+    }
+
+    private boolean matches(byte[] infoHash, int pieceCount, int fileCount) {
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            return false;
+        }
+        for (int i = 0; i < infoHash.length; i++) {
+            if (buf.get(8 + i) != infoHash[i]) {
+                return false;
+            }
+        }
+        return buf.getInt(28) == pieceCount && buf.getInt(32) == fileCount;
+    }
+
+    private static int sizeOffset(int file) {
+        return HEADER_LENGTH + 16 * file;
+    }
+
+    private int bitsOffset() {
+        return sizeOffset(files.length);
+    }
+
+    /**
+     * The known good pieces, backed by the mapped file.
+     */
+    public Bitfield bitfield() {
+        return bitfield;
+    }
+
+    public void pieceCompleted(int piece) {
+        bitfield.set(piece);
+    }
+
+    public void pieceFailed(int piece) {
+        bitfield.clear(piece);
+    }
+
+    private boolean changed(int file) {
+        File f = files[file];
+        long size = f.isFile() ? f.length() : -1;
+        return size != buf.getLong(sizeOffset(file)) || f.lastModified() != buf.getLong(sizeOffset(file) + 8);
+    }
+
+    /**
+     * Re-hash the pieces touching files whose size or modification time differ from the recorded ones,
+     * then {@link #sync()}. The pieces of unchanged files keep their state.
+     *
+     * @return number of pieces re-hashed
+     */
+    public synchronized int check(int threads) throws IOException {
+        boolean[] recheck = new boolean[bitfield.size()];
+        int count = 0;
+        for (int file = 0; file < files.length; file++) {
+            if (!changed(file) || index.fileLength(file) == 0) {
+                continue;
+            }
+            for (int piece = index.firstPiece(file); piece <= index.lastPiece(file) && piece < recheck.length; piece++) {
+                if (!recheck[piece]) {
+                    recheck[piece] = true;
+                    count++;
+                }
+            }
+        }
+
+        if (count > 0) {
+            int[] pieces = new int[count];
+            int n = 0;
+            for (int piece = 0; piece < recheck.length; piece++) {
+                if (recheck[piece]) {
+                    pieces[n++] = piece;
+                }
+            }
+
+            PieceVerifier verifier = new PieceVerifier(meta, root);
+            verifier.setThreads(threads);
+            verifier.verify(pieces, bitfield);
+        }
+        sync();
+        return count;
+    }
+
+    /**
+     * Record the current size and modification time of every file and flush the state to disk. Call this
+     * once the files are no longer written, e.g. on shutdown.
+     */
+    public synchronized void sync() {
+        for (int file = 0; file < files.length; file++) {
+            File f = files[file];
+            buf.putLong(sizeOffset(file), f.isFile() ? f.length() : -1);
+            buf.putLong(sizeOffset(file) + 8, f.lastModified());
+        }
+        buf.force();
+    }
+
+    /**
+     * {@link #sync()} the state file; the mapping itself is released once this state is collected.
+     */
+    public synchronized void close() throws IOException {
+        sync();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A directory of fast-resume states, one file per torrent named after its info-hash.
+ *
+ * <pre>
+ * ResumeState state = store.open(meta, downloadDir);
+ * state.check(4); //re-hashes only the pieces of files changed since the last sync
+ * ...
+ * state.pieceCompleted(piece);
+ * ...
+ * state.close();
+ * </pre>
+ */
+public class ResumeStore {
+    private static final String EXTENSION = ".resume";
+
+    private final File dir;
+
+    public ResumeStore(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        this.dir = dir;
+    }
+
+    /**
+     * Open the state of <code>meta</code>, whose data is under <code>root</code> (as for
+     * {@link PieceVerifier}). A new state has no valid piece and treats every file as changed.
+     */
+    public ResumeState open(TorrentMeta meta, File root) throws IOException {
+        return new ResumeState(file(meta.infoHash), meta, root);
+    }
+
+    public boolean remove(String infoHash) {
+        return file(infoHash).delete();
+    }
+
+    private File file(String infoHash) {
+        return new File(dir, infoHash + EXTENSION);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import wtf.cowbay.libraven.bencode.BEncoder;
+import wtf.cowbay.libraven.bencode.ByteString;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Creates a torrent from a file (single file mode) or a directory (multiple file mode, every file under
+ * it in path order). The content is memory-mapped and its pieces are hashed in parallel, across file
+ * boundaries.
+ *
+ * <pre>
+ * TorrentBuilder builder = new TorrentBuilder(new File("dataset"));
+ * builder.addTracker("http://tracker.example.com/announce");
+ * TorrentBuilder.Result result = builder.build();
+ * result.encoded.writeTo(out);
+ * </pre>
+ */
+public class TorrentBuilder {
+    private static final long MIN_PIECE_LENGTH = 16 * 1024;
+    private static final long MAX_PIECE_LENGTH = 16 * 1024 * 1024;
+    private static final long TARGET_PIECES = 2000;
+
+    public static class Result {
+        public TorrentMeta meta;
+        public ByteString encoded; //the .torrent file
+    }
+
+    private final File source;
+    private final List<String> trackers = new ArrayList<String>();
+    private long pieceLength = 0; //0: chosen from the content size
+    private String comment;
+    private String createdBy;
+    private long created = 0;
+    private boolean isPrivate = false;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public TorrentBuilder(File source) {
+        this.source = source;
+    }
+
+    /**
+     * Add a tracker; the first one is the <code>announce</code> URL, all of them form the
+     * <code>announce-list</code>, one tier each.
+     */
+    public void addTracker(String url) {
+        trackers.add(url);
+    }
+
+    /**
+     * Piece length in bytes, a power of two. By default a length between 16 KiB and 16 MiB giving about
+     * 2000 pieces is chosen.
+     */
+    public void setPieceLength(long pieceLength) {
+        if (pieceLength <= 0 || (pieceLength & (pieceLength - 1)) != 0) {
+            throw new IllegalArgumentException("Piece length must be a power of two");
+        }
+        this.pieceLength = pieceLength;
+    }
+
+    public void setComment(String comment) {
+        this.comment = comment;
+    }
+
+    public void setCreatedBy(String createdBy) {
+        this.createdBy = createdBy;
+    }
+
+    /**
+     * @param created creation time in seconds since the epoch
+     */
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
+    public void setPrivate(boolean isPrivate) {
+        this.isPrivate = isPrivate;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.threads = threads;
+    }
+
+    public Result build() throws IOException {
+        if (trackers.isEmpty()) {
+            throw new IllegalStateException("At least one tracker is needed");
+        }
+        if (!source.exists()) {
+            throw new IOException(source + " not existed");
+        }
+
+        //Collect files
+        List<File> files = new ArrayList<File>();
+        List<List<String>> paths = new ArrayList<List<String>>();
+        boolean isMultiFile = source.isDirectory();
+        if (isMultiFile) {
+            collect(source, new ArrayList<String>(), new HashSet<String>(), files, paths);
+            if (files.isEmpty()) {
+                throw new IOException(source + " contains no files");
+            }
+        } else {
+            files.add(source);
+        }
+
+        long[] lengths = new long[files.size()];
+        long total = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = files.get(i).length();
+            total += lengths[i];
+        }
+
+        long length = pieceLength > 0 ? pieceLength : choosePieceLength(total);
+        byte[] pieces = hashPieces(files.toArray(new File[files.size()]), new FileIndex(lengths, length));
+
+        //Encode
+        Map<String, Object> info = new TreeMap<String, Object>();
+        info.put("name", source.getName());
+        info.put("piece length", length);
+        info.put("pieces", pieces);
+        if (isMultiFile) {
+            List<Map<String, Object>> fileList = new ArrayList<Map<String, Object>>(files.size());
+            for (int i = 0; i < lengths.length; i++) {
+                Map<String, Object> file = new TreeMap<String, Object>();
+                file.put("length", lengths[i]);
+                file.put("path", paths.get(i));
+                fileList.add(file);
+            }
+            info.put("files", fileList);
+        } else {
+            info.put("length", lengths[0]);
+        }
+        if (isPrivate) {
+            info.put("private", 1);
+        }
+
+        Map<String, Object> torrent = new TreeMap<String, Object>();
+        torrent.put("announce", trackers.get(0));
+        if (trackers.size() > 1) {
+            List<List<String>> tiers = new ArrayList<List<String>>();
+            for (String tracker : trackers) {
+                tiers.add(Collections.singletonList(tracker));
+            }
+            torrent.put("announce-list", tiers);
+        }
+        torrent.put("comment", comment);
+        torrent.put("created by", createdBy);
+        if (created > 0) {
+            torrent.put("creation date", created);
+        }
+        torrent.put("info", info);
+
+        Result result = new Result();
+        result.encoded = BEncoder.encode(torrent);
+        result.meta = TorrentMeta.load(result.encoded.asByteBuffer());
+        return result;
+    }
+
+    /**
+     * Symbolic links to directories are followed, but each directory is walked once, so link cycles end.
+     */
+    private static void collect(File dir, List<String> path, Set<String> visited, List<File> files, List<List<String>> paths) throws IOException {
+        if (!visited.add(dir.getCanonicalPath())) {
+            return;
+        }
+        File[] children = dir.listFiles();
+        if (children == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            List<String> childPath = new ArrayList<String>(path);
+            childPath.add(child.getName());
+            if (child.isDirectory()) {
+                collect(child, childPath, visited, files, paths);
+            } else {
+                files.add(child);
+                paths.add(childPath);
+            }
+        }
+    }
+
+    static long choosePieceLength(long total) {
+        long length = MIN_PIECE_LENGTH;
+        while (total / length > TARGET_PIECES && length < MAX_PIECE_LENGTH) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    private byte[] hashPieces(File[] files, FileIndex index) throws IOException {
+        long count = index.pieceCount();
+        if (count * PieceHashes.SHA1_LENGTH > Integer.MAX_VALUE) {
+            throw new IOException("Too many pieces, use a larger piece length");
+        }
+
+        final byte[] pieces = new byte[(int) count * PieceHashes.SHA1_LENGTH];
+        final MappedContent content = new MappedContent(files, index);
+        final FileIndex fileIndex = index;
+        try {
+            PieceHasher.run((int) count, threads, new PieceHasher.Task() {
+                public void hash(int piece, MessageDigest sha1, byte[] hash) throws Exception {
+                    sha1.reset();
+                    if (!content.digest(fileIndex.pieceOffset(piece), fileIndex.pieceSize(piece), sha1)) {
+                        throw new IOException("File changed while hashing piece " + piece);
+                    }
+                    sha1.digest(pieces, piece * PieceHashes.SHA1_LENGTH, PieceHashes.SHA1_LENGTH);
+                }
+            });
+        } finally {
+            content.close();
+        }
+        return pieces;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import wtf.cowbay.libraven.bencode.ByteString;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent cache of parsed torrents keyed by their 20-byte info-hash, bounded by the estimated memory
+ * the torrents retain (see {@link #weigh(TorrentMeta)}).
+ * <p/>
+ * Eviction follows W-TinyLFU: new torrents enter a small LRU window; when the window overflows, its
+ * oldest torrent only replaces the oldest torrent of the main LRU area if it has been requested more often
+ * recently, as estimated by a count-min sketch. A scan of one-off torrents therefore doesn't flush the
+ * popular ones.
+ * <p/>
+ * Hits read a concurrent map; recording the access for the eviction policy is skipped when another thread
+ * holds the policy lock, so under contention the policy is approximate rather than a bottleneck.
+ * Concurrent misses of the same info-hash are loaded once by {@link #get(ByteString, Loader)}.
+ */
+public class TorrentCache {
+    public interface Loader {
+        /**
+         * @return the torrent, or null if there is none for <code>infoHash</code>
+         */
+        TorrentMeta load(ByteString infoHash) throws IOException;
+    }
+
+    private final long maxWeight;
+    private final long windowMaxWeight;
+
+    private final ConcurrentMap<ByteString, TorrentMeta> data = new ConcurrentHashMap<ByteString, TorrentMeta>();
+    private final ConcurrentMap<ByteString, FutureTask<TorrentMeta>> loading = new ConcurrentHashMap<ByteString, FutureTask<TorrentMeta>>();
+
+    //eviction policy, guarded by lock; values are the weights
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<ByteString, Long> window = new LinkedHashMap<ByteString, Long>(16, 0.75f, true);
+    private final LinkedHashMap<ByteString, Long> main = new LinkedHashMap<ByteString, Long>(16, 0.75f, true);
+    private long windowWeight = 0;
+    private long mainWeight = 0;
+    private final FrequencySketch sketch;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxWeight budget in bytes of estimated retained size
+     */
+    public TorrentCache(long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("Budget must be positive");
+        }
+        this.maxWeight = maxWeight;
+        this.windowMaxWeight = Math.max(1, maxWeight / 100);
+        //about one counter per 16 KiB of budget, a small torrent
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(256, maxWeight >> 14)));
+    }
+
+    /**
+     * Estimated heap retained by a torrent: mostly its piece hashes, then its file paths and trackers.
+     */
+    public static long weigh(TorrentMeta meta) {
+        long weight = 256; //TorrentMeta, Info and their fields
+        weight += (long) meta.info.pieces.count() * meta.info.pieces.hashLength();
+        for (TorrentMeta.FileInfo file : meta.info.files) {
+            weight += 64 + 2L * (file.path == null ? 0 : file.path.length());
+        }
+        for (String announce : meta.announces) {
+            weight += 48 + 2L * announce.length();
+        }
+        return weight;
+    }
+
+    private static ByteString key(String infoHash) {
+        try {
+            return new ByteString(Hex.decodeHex(infoHash.toCharArray()));
+        } catch (DecoderException e) {
+            throw new IllegalArgumentException("Invalid info-hash " + infoHash);
+        }
+    }
+
+    /**
+     * @return the cached torrent, or null
+     */
+    public TorrentMeta getIfPresent(ByteString infoHash) {
+        TorrentMeta meta = data.get(infoHash);
+        if (meta == null) {
+            misses.incrementAndGet();
+            recordAccess(infoHash, false);
+        } else {
+            hits.incrementAndGet();
+            recordAccess(infoHash, true);
+        }
+        return meta;
+    }
+
+    /**
+     * Return the cached torrent, or load and cache it. If several threads miss the same info-hash at once,
+     * one of them runs <code>loader</code> and the others wait for its result.
+     *
+     * @return the torrent, or null if <code>loader</code> found none; nothing is cached then
+     */
+    public TorrentMeta get(ByteString infoHash, final Loader loader) throws IOException {
+        TorrentMeta meta = getIfPresent(infoHash);
+        if (meta != null) {
+            return meta;
+        }
+
+        final ByteString key = new ByteString(infoHash.value()); //own the bytes, infoHash may be a view
+        FutureTask<TorrentMeta> task = new FutureTask<TorrentMeta>(new Callable<TorrentMeta>() {
+            public TorrentMeta call() throws IOException {
+                return loader.load(key);
+            }
+        });
+        FutureTask<TorrentMeta> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                meta = data.get(key); //loaded by another thread since our miss
+                if (meta != null) {
+                    return meta;
+                }
+                task.run();
+                meta = result(task);
+                if (meta != null) {
+                    put(key, meta);
+                }
+                return meta;
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+        return result(running);
+    }
+
+    private static TorrentMeta result(FutureTask<TorrentMeta> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Loading interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Loading failed: " + cause);
+        }
+    }
+
+    /**
+     * Cache <code>meta</code> under its info-hash, replacing any torrent cached for it.
+     */
+    public void put(TorrentMeta meta) {
+        put(key(meta.infoHash), meta);
+    }
+
+    private void put(ByteString key, TorrentMeta meta) {
+        long weight = weigh(meta);
+        lock.lock();
+        try {
+            data.put(key, meta);
+            sketch.increment(key.hashCode());
+            removeFromPolicy(key);
+            window.put(key, weight);
+            windowWeight += weight;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(ByteString infoHash) {
+        lock.lock();
+        try {
+            if (data.remove(infoHash) != null) {
+                removeFromPolicy(infoHash);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordAccess(ByteString key, boolean hit) {
+        if (!lock.tryLock()) {
+            return; //lossy under contention
+        }
+        try {
+            sketch.increment(key.hashCode());
+            if (hit && window.get(key) == null) {
+                main.get(key); //moves it to the most recently used end
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeFromPolicy(ByteString key) {
+        Long weight = window.remove(key);
+        if (weight != null) {
+            windowWeight -= weight;
+        }
+        weight = main.remove(key);
+        if (weight != null) {
+            mainWeight -= weight;
+        }
+    }
+
+    private void evict() {
+        //window overflow: each candidate competes with the oldest torrent of main
+        while (windowWeight > windowMaxWeight) {
+            Map.Entry<ByteString, Long> candidate = window.entrySet().iterator().next();
+            ByteString key = candidate.getKey();
+            long weight = candidate.getValue();
+            window.remove(key);
+            windowWeight -= weight;
+            main.put(key, weight);
+            mainWeight += weight;
+
+            int frequency = sketch.frequency(key.hashCode());
+            while (windowWeight + mainWeight > maxWeight) {
+                Iterator<Map.Entry<ByteString, Long>> it = main.entrySet().iterator();
+                Map.Entry<ByteString, Long> victim = it.next();
+                if (victim.getKey().equals(key) || frequency <= sketch.frequency(victim.getKey().hashCode())) {
+                    evictMain(key); //the candidate loses
+                    break;
+                }
+                evictMain(victim.getKey());
+            }
+        }
+
+        //the window alone may exceed a tiny budget
+        while (windowWeight + mainWeight > maxWeight && !main.isEmpty()) {
+            evictMain(main.keySet().iterator().next());
+        }
+    }
+
+    private void evictMain(ByteString key) {
+        mainWeight -= main.remove(key);
+        data.remove(key);
+        evictions.incrementAndGet();
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * Estimated retained size of the cached torrents.
+     */
+    public long weight() {
+        lock.lock();
+        try {
+            return windowWeight + mainWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters estimating how often keys were seen recently. Counters are
+     * halved periodically so old popularity fades.
+     */
+    private static class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xb4b82e53, 0x4aa7a4b1, 0x5cbc9c37};
+
+        private final byte[][] rows;
+        private final int mask;
+        private final int resetAfter;
+        private int additions = 0;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(Math.max(width, 2) - 1) << 1;
+            rows = new byte[SEEDS.length][size];
+            mask = size - 1;
+            resetAfter = 10 * size;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        void increment(int hash) {
+            for (int row = 0; row < rows.length; row++) {
+                int i = index(hash, row);
+                if (rows[row][i] < 15) {
+                    rows[row][i]++;
+                }
+            }
+            if (++additions == resetAfter) {
+                for (byte[] counters : rows) {
+                    for (int i = 0; i < counters.length; i++) {
+                        counters[i] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int min = 15;
+            for (int row = 0; row < rows.length; row++) {
+                min = Math.min(min, rows[row][index(hash, row)]);
+            }
+            return min;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.torrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The torrents of a directory tree, indexed by info-hash. {@link #loadAll(File)} parses the
+ * <code>.torrent</code> files concurrently on a bounded pool; the directory walk hands files to the pool
+ * through a small queue and parses on its own thread when the queue is full, so memory stays flat however
+ * many files there are. A file that can't be loaded is recorded in {@link #failures()} and doesn't stop
+ * the others.
+ */
+public class TorrentCatalog {
+    private static final String EXTENSION = ".torrent";
+
+    private final ConcurrentMap<String, TorrentMeta> torrents = new ConcurrentHashMap<String, TorrentMeta>();
+    private final ConcurrentMap<File, Exception> failures = new ConcurrentHashMap<File, Exception>();
+
+    private TorrentCatalog() {
+    }
+
+    public static TorrentCatalog loadAll(File dir) throws IOException {
+        return loadAll(dir, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Load every <code>.torrent</code> file under <code>dir</code>, including its subdirectories.
+     * When several files have the same info-hash, one of them is kept. Symbolic links to directories are
+     * followed, but each directory is walked once, so link cycles end the walk.
+     *
+     * @param threads number of parsing threads
+     */
+    public static TorrentCatalog loadAll(File dir, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        if (!dir.isDirectory()) {
+            throw new IOException(dir + " is not a directory");
+        }
+
+        final TorrentCatalog catalog = new TorrentCatalog();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            //walk iteratively, deep trees don't grow the stack
+            Set<String> visited = new HashSet<String>();
+            Deque<File> dirs = new ArrayDeque<File>();
+            dirs.push(dir);
+            while (!dirs.isEmpty()) {
+                File current = dirs.pop();
+                try {
+                    if (!visited.add(current.getCanonicalPath())) {
+                        continue;
+                    }
+                } catch (IOException e) {
+                    catalog.failures.put(current, e);
+                    continue;
+                }
+
+                File[] children = current.listFiles();
+                if (children == null) {
+                    catalog.failures.put(current, new IOException("Cannot list " + current));
+                    continue;
+                }
+
+                for (final File child : children) {
+                    if (child.isDirectory()) {
+                        dirs.push(child);
+                    } else if (child.getName().endsWith(EXTENSION)) {
+                        executor.execute(new Runnable() {
+                            public void run() {
+                                catalog.load(child);
+                            }
+                        });
+                    }
+                }
+            }
+
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                //keep waiting
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Loading interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return catalog;
+    }
+
+    private void load(File file) {
+        try {
+            TorrentMeta meta = TorrentMeta.loadFromFile(file.getPath());
+            torrents.putIfAbsent(meta.infoHash, meta);
+        } catch (Exception e) { //malformed files fail with runtime exceptions as well
+            failures.put(file, e);
+        }
+    }
+
+    /**
+     * @param infoHash info-hash as a lowercase hex string
+     * @return the torrent, or null if none has this info-hash
+     */
+    public TorrentMeta get(String infoHash) {
+        return torrents.get(infoHash);
+    }
+
+    public int size() {
+        return torrents.size();
+    }
+
+    public Collection<TorrentMeta> torrents() {
+        return Collections.unmodifiableCollection(torrents.values());
+    }
+
+    /**
+     * Files (or directories) that couldn't be loaded, with the reason.
+     */
+    public Map<File, Exception> failures() {
+        return Collections.unmodifiableMap(failures);
+    }
+}
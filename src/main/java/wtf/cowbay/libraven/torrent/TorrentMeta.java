@@ -19,19 +19,29 @@ package wtf.cowbay.libraven.torrent;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
-import wtf.cowbay.libraven.bencode.BDecoder;
-import wtf.cowbay.libraven.bencode.BEncoder;
+import org.apache.commons.io.IOUtils;
+import wtf.cowbay.libraven.bencode.BencodeReader;
+import wtf.cowbay.libraven.bencode.BencodeSchema;
 import wtf.cowbay.libraven.bencode.ByteString;
+import wtf.cowbay.libraven.metrics.LoadStats;
+import wtf.cowbay.libraven.metrics.Metrics;
+import wtf.cowbay.libraven.metrics.MetricsListener;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class TorrentMeta {
+    //files larger than this are memory-mapped, smaller ones are read into a heap buffer
+    private static final long MAP_THRESHOLD = 1 << 20;
+
     public Info info = new Info();
     public List<String> announces = new ArrayList<String>();
 
@@ -41,142 +51,373 @@ public class TorrentMeta {
     public String encoding; //optional
 
     public String infoHash; //generated
+    public String infoHashV2; //generated, SHA-256 of v2 and hybrid torrents
+    public Map<ByteString, PieceHashes> pieceLayers = new HashMap<ByteString, PieceHashes>(); //v2, by pieces root
 
-    private static void ensureField(Map map, String fieldName) throws IOException {
-        if (!map.containsKey(fieldName)) {
-            throw new IOException("Invalid torrent file: " + fieldName + " not existed");
-        }
-    }
+    static final PieceHashes NO_PIECES = new PieceHashes(new byte[0]);
+
+    private long hashNanos; //metrics of the load, taken while a listener is installed
+    private int infoLength;
 
     public static TorrentMeta loadFromFile(String fileName) throws IOException {
-        return load(new FileInputStream(fileName));
+        return load(readFile(fileName));
+    }
+
+    static ByteBuffer readFile(String fileName) throws IOException {
+        FileChannel channel = new RandomAccessFile(fileName, "r").getChannel();
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid torrent file: " + fileName + " is too large");
+            }
+
+            ByteBuffer buf;
+            if (size > MAP_THRESHOLD) {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buf = ByteBuffer.allocate((int) size);
+                while (buf.hasRemaining() && channel.read(buf) != -1) {
+                    //keep reading
+                }
+                buf.flip();
+            }
+            return buf;
+        } finally {
+            channel.close();
+        }
     }
 
+    /**
+     * Load a torrent from <code>in</code>, which is read to the end first.
+     */
     public static TorrentMeta load(InputStream in) throws IOException {
-        Map map = (Map) new BDecoder(in).decode();
+        return load(ByteBuffer.wrap(IOUtils.toByteArray(in)));
+    }
 
-        TorrentMeta meta = new TorrentMeta();
+    /**
+     * Load a torrent from the remaining bytes of <code>buf</code>. Strings are decoded in place, without
+     * stream-level buffering or locking.
+     */
+    public static TorrentMeta load(ByteBuffer buf) throws IOException {
+        return load(new BencodeReader(buf));
+    }
 
-        ensureField(map, "info");
-        Map infoMap = (Map) map.get("info");
+    private static TorrentMeta load(BencodeReader reader) throws IOException {
+        MetricsListener listener = Metrics.listener();
+        if (listener == null) {
+            return SCHEMA.read(reader);
+        }
 
-        ensureField(infoMap, "name");
-        ensureField(infoMap, "piece length");
-        ensureField(infoMap, "pieces");
+        long from = reader.position();
+        long start = System.nanoTime();
+        TorrentMeta meta;
+        try {
+            meta = SCHEMA.read(reader);
+        } catch (IOException e) {
+            listener.failed(MetricsListener.Operation.LOAD, e);
+            throw e;
+        } catch (RuntimeException e) {
+            listener.failed(MetricsListener.Operation.LOAD, e);
+            throw e;
+        }
 
-        meta.info.name = infoMap.get("name").toString();
-        meta.info.piece_len = (Long) infoMap.get("piece length");
-        ByteString pieces = (ByteString) infoMap.get("pieces");
+        LoadStats stats = new LoadStats();
+        stats.nanos = System.nanoTime() - start;
+        stats.bytes = reader.position() - from;
+        stats.hashNanos = meta.hashNanos;
+        stats.infoBytes = meta.infoLength;
+        stats.files = meta.info.files.size();
+        stats.pieces = meta.info.pieces.count();
+        stats.announces = meta.announces.size();
+        listener.torrentLoaded(stats);
+        return meta;
+    }
 
-        //Process pieces
-        if (pieces.length() % 20 != 0) {
-            throw new IOException("Invalid torrent file: pieces should be an array of 20-byte SHA-1");
+    /**
+     * Schema of the torrent's dictionaries, reporting missing fields as invalid torrent files.
+     */
+    abstract static class TorrentSchema<T> extends BencodeSchema<T> {
+        protected void missing(String key) throws IOException {
+            throw new IOException("Invalid torrent file: " + key + " not existed");
         }
+    }
 
-        byte[] bytes = pieces.value();
-        int i = 0;
-        while (i < bytes.length) {
-            ByteString piece = new ByteString(Arrays.copyOfRange(bytes, i, i + 20));
-            meta.info.pieces.add(piece);
-            i += 20;
+    static final BencodeSchema<FileInfo> FILE_SCHEMA = new TorrentSchema<FileInfo>() {
+        protected FileInfo create() {
+            return new FileInfo();
+        }
+    }.field(new BencodeSchema.Field<FileInfo>("length", true) {
+        protected void read(BencodeReader reader, FileInfo file) throws IOException {
+            file.length = reader.readLong();
+        }
+    }).field(new BencodeSchema.Field<FileInfo>("path", true) {
+        protected void read(BencodeReader reader, FileInfo file) throws IOException {
+            file.path = readPath(reader);
         }
+    }).field(new BencodeSchema.Field<FileInfo>("md5sum") {
+        protected void read(BencodeReader reader, FileInfo file) throws IOException {
+            file.md5sum = reader.readString();
+        }
+    });
 
-        //Process files
-        if (infoMap.containsKey("files")) { //Multiple file mode
-            List fileList = (List) infoMap.get("files");
-            for (Object obj : fileList) {
-                Map fileMap = (Map) obj;
-                ensureField(fileMap, "path");
-                ensureField(fileMap, "length");
+    //file entry of a v2 file tree, the path comes from the enclosing keys
+    static final BencodeSchema<FileInfo> FILE_TREE_SCHEMA = new TorrentSchema<FileInfo>() {
+        protected FileInfo create() {
+            return new FileInfo();
+        }
+    }.field(new BencodeSchema.Field<FileInfo>("length", true) {
+        protected void read(BencodeReader reader, FileInfo file) throws IOException {
+            file.length = reader.readLong();
+        }
+    }).field(new BencodeSchema.Field<FileInfo>("pieces root") {
+        protected void read(BencodeReader reader, FileInfo file) throws IOException {
+            file.piecesRoot = new ByteString(reader.readBytes().value());
+        }
+    });
 
-                FileInfo fileInfo = new FileInfo();
-                fileInfo.path = fileMap.get("path").toString();
-                fileInfo.length = (Long) fileMap.get("length");
+    static final BencodeSchema<Info> INFO_SCHEMA = new TorrentSchema<Info>() {
+        protected Info create() {
+            return new Info();
+        }
 
-                //Optional (md5sum)
-                if (fileMap.containsKey("md5sum")) {
-                    fileInfo.md5sum = fileMap.get("md5sum").toString();
-                }
-                meta.info.files.add(fileInfo);
+        protected void complete(Info info) throws IOException {
+            boolean v1 = info.fileTree.isEmpty();
+            if (v1 && info.pieces == NO_PIECES) {
+                missing("pieces");
             }
-        } else { //Single file mode
-            ensureField(infoMap, "length");
 
+            if (!info.isMultiFile) {
+                if (!info.files.isEmpty()) { //Single file mode
+                    info.files.get(0).path = info.name;
+                } else if (!v1) { //v2 only, a single file is named after the torrent
+                    info.files = info.fileTree;
+                    info.isMultiFile = info.fileTree.size() > 1 || !info.fileTree.get(0).path.equals(info.name);
+                } else {
+                    missing("length");
+                }
+            }
+        }
+    }.field(new BencodeSchema.Field<Info>("name", true) {
+        protected void read(BencodeReader reader, Info info) throws IOException {
+            info.name = checkComponent(reader.readString());
+        }
+    }).field(new BencodeSchema.Field<Info>("piece length", true) {
+        protected void read(BencodeReader reader, Info info) throws IOException {
+            info.piece_len = reader.readLong();
+        }
+    }).field(new BencodeSchema.Field<Info>("pieces") { //v1, checked in complete()
+        protected void read(BencodeReader reader, Info info) throws IOException {
+            info.pieces = readPieces(reader.readBytes());
+        }
+    }).field(new BencodeSchema.Field<Info>("files") { //Multiple file mode
+        protected void read(BencodeReader reader, Info info) throws IOException {
+            info.isMultiFile = true;
+            info.files = FILE_SCHEMA.readList(reader);
+        }
+    }).field(new BencodeSchema.Field<Info>("length") { //Single file mode
+        protected void read(BencodeReader reader, Info info) throws IOException {
             FileInfo fileInfo = new FileInfo();
-            fileInfo.length = (Long) infoMap.get("length");
-            fileInfo.path = meta.info.name;
+            fileInfo.length = reader.readLong();
+            if (!info.isMultiFile) {
+                info.files.clear();
+                info.files.add(fileInfo);
+            }
+        }
+    }).field(new BencodeSchema.Field<Info>("private") {
+        protected void read(BencodeReader reader, Info info) throws IOException {
+            info.isPrivate = reader.readLong() == 1;
+        }
+    }).field(new BencodeSchema.Field<Info>("meta version") {
+        protected void read(BencodeReader reader, Info info) throws IOException {
+            info.metaVersion = (int) reader.readLong();
+        }
+    }).field(new BencodeSchema.Field<Info>("file tree") { //v2
+        protected void read(BencodeReader reader, Info info) throws IOException {
+            info.fileTree = new ArrayList<FileInfo>();
+            readFileTree(reader, new ArrayList<String>(), info.fileTree);
+        }
+    });
 
-            meta.info.files.add(fileInfo);
+    static final BencodeSchema<TorrentMeta> SCHEMA = new TorrentSchema<TorrentMeta>() {
+        protected TorrentMeta create() {
+            return new TorrentMeta();
+        }
+    }.field(new BencodeSchema.Field<TorrentMeta>("info", true) {
+        protected void read(BencodeReader reader, TorrentMeta meta) throws IOException {
+            //info-hashes are computed from the raw bytes of the info dictionary, not re-encoded
+            ByteString raw = reader.readRaw();
+            INFO_SCHEMA.read(new BencodeReader(raw), meta.info);
+
+            boolean timed = Metrics.listener() != null;
+            long start = timed ? System.nanoTime() : 0;
+            MessageDigest sha1 = DigestUtils.getSha1Digest();
+            raw.updateDigest(sha1);
+            meta.infoHash = Hex.encodeHexString(sha1.digest());
+            if (meta.info.metaVersion >= 2) {
+                MessageDigest sha256 = DigestUtils.getSha256Digest();
+                raw.updateDigest(sha256);
+                meta.infoHashV2 = Hex.encodeHexString(sha256.digest());
+            }
+            if (timed) {
+                meta.hashNanos = System.nanoTime() - start;
+                meta.infoLength = raw.length();
+            }
+        }
+    }).field(new BencodeSchema.Field<TorrentMeta>("announce", true) {
+        protected void read(BencodeReader reader, TorrentMeta meta) throws IOException {
+            readAnnounce(reader, meta.announces);
+        }
+    }).field(new BencodeSchema.Field<TorrentMeta>("announce-list") {
+        protected void read(BencodeReader reader, TorrentMeta meta) throws IOException {
+            readAnnounceList(reader, meta.announces);
         }
+    }).field(new BencodeSchema.Field<TorrentMeta>("creation date") {
+        protected void read(BencodeReader reader, TorrentMeta meta) throws IOException {
+            meta.created = reader.readLong();
+        }
+    }).field(new BencodeSchema.Field<TorrentMeta>("created by") {
+        protected void read(BencodeReader reader, TorrentMeta meta) throws IOException {
+            meta.createdBy = reader.readString();
+        }
+    }).field(new BencodeSchema.Field<TorrentMeta>("comment") {
+        protected void read(BencodeReader reader, TorrentMeta meta) throws IOException {
+            meta.comment = reader.readString();
+        }
+    }).field(new BencodeSchema.Field<TorrentMeta>("encoding") {
+        protected void read(BencodeReader reader, TorrentMeta meta) throws IOException {
+            meta.encoding = reader.readString();
+        }
+    }).field(new BencodeSchema.Field<TorrentMeta>("piece layers") { //v2
+        protected void read(BencodeReader reader, TorrentMeta meta) throws IOException {
+            reader.beginDict();
+            while (reader.hasNext()) {
+                ByteString root = new ByteString(reader.readBytes().value());
+                ByteString layer = reader.readBytes();
+                if (layer.length() % MerkleTree.HASH_LENGTH != 0) {
+                    throw new IOException("Invalid torrent file: piece layers should be arrays of 32-byte SHA-256");
+                }
+                meta.pieceLayers.put(root, PieceHashes.copyOf(layer, MerkleTree.HASH_LENGTH));
+            }
+            reader.endDict();
+        }
+    });
 
-        //Process announce
-        ensureField(map, "announce");
+    static PieceHashes readPieces(ByteString pieces) throws IOException {
+        if (pieces.length() % PieceHashes.SHA1_LENGTH != 0) {
+            throw new IOException("Invalid torrent file: pieces should be an array of 20-byte SHA-1");
+        }
 
-        Object annObj = map.get("announce"); //single item of annource might be a string
+        return PieceHashes.copyOf(pieces, PieceHashes.SHA1_LENGTH);
+    }
 
-        if (annObj instanceof ByteString) {
-            meta.announces.add(annObj.toString());
-        } else {
-            List ann = (List) annObj;
-            for (Object obj : ann) {
-                meta.announces.add(obj.toString());
+    /**
+     * Join the path components of a file in multiple file mode with '/'.
+     */
+    static String readPath(BencodeReader reader) throws IOException {
+        StringBuilder path = new StringBuilder();
+        reader.beginList();
+        while (reader.hasNext()) {
+            if (path.length() > 0) {
+                path.append('/');
             }
+            path.append(checkComponent(reader.readString()));
         }
-
-        //Optional info
-        if (infoMap.containsKey("private")) {
-            meta.info.isPrivate = (Long) infoMap.get("private") == 1;
+        reader.endList();
+        if (path.length() == 0) {
+            throw new IOException("Invalid torrent file: empty path");
         }
+        return path.toString();
+    }
 
-        if (infoMap.containsKey("creation date")) {
-            meta.created = (Long) infoMap.get("creation date");
+    /**
+     * Reject a name or path component that would not stay inside the torrent's directory once joined to it:
+     * empty, <code>.</code>, <code>..</code>, or containing a separator.
+     *
+     * @return <code>component</code>
+     */
+    static String checkComponent(String component) throws IOException {
+        if (component.length() == 0 || component.equals(".") || component.equals("..")
+                || component.indexOf('/') >= 0 || component.indexOf('\\') >= 0 || component.indexOf('\0') >= 0) {
+            throw new IOException("Invalid torrent file: illegal path component \"" + component + "\"");
         }
+        return component;
+    }
 
-        if (map.containsKey("announce-list")) {
-            List annList = (List) map.get("announce-list");
-
-            for (Object obj : annList) {
-                List strList = (List) obj;
-                for (Object str : strList) {
-                    meta.announces.add(str.toString());
+    /**
+     * Read a v2 file tree: nested dictionaries keyed by path component, a file being the dictionary under
+     * the empty key.
+     */
+    static void readFileTree(BencodeReader reader, List<String> path, List<FileInfo> files) throws IOException {
+        reader.beginDict();
+        while (reader.hasNext()) {
+            String name = reader.readString();
+            if (name.length() == 0) {
+                FileInfo file = FILE_TREE_SCHEMA.read(reader);
+                StringBuilder joined = new StringBuilder();
+                for (String component : path) {
+                    if (joined.length() > 0) {
+                        joined.append('/');
+                    }
+                    joined.append(component);
                 }
+                file.path = joined.toString();
+                files.add(file);
+            } else {
+                path.add(checkComponent(name));
+                readFileTree(reader, path, files);
+                path.remove(path.size() - 1);
             }
         }
+        reader.endDict();
+    }
 
-        if (infoMap.containsKey("creation by")) {
-            meta.createdBy = infoMap.get("creation by").toString();
+    /**
+     * Read the announce URL(s), which go before any announce-list entries already read.
+     */
+    static void readAnnounce(BencodeReader reader, List<String> announces) throws IOException {
+        if (reader.nextToken() == BencodeReader.Token.STRING) { //single item of annource might be a string
+            announces.add(0, reader.readString());
+        } else {
+            int i = 0;
+            reader.beginList();
+            while (reader.hasNext()) {
+                announces.add(i++, reader.readString());
+            }
+            reader.endList();
         }
+    }
 
-        if (infoMap.containsKey("comment")) {
-            meta.comment = infoMap.get("comment").toString();
+    static void readAnnounceList(BencodeReader reader, List<String> announces) throws IOException {
+        reader.beginList();
+        while (reader.hasNext()) {
+            reader.beginList();
+            while (reader.hasNext()) {
+                announces.add(reader.readString());
+            }
+            reader.endList();
         }
-
-        meta.infoHash = generateInfoHash(infoMap);
-
-        return meta;
+        reader.endList();
     }
 
     public byte[] infoHash() throws DecoderException {
         return Hex.decodeHex(infoHash.toCharArray());
     }
 
-    private static String generateInfoHash(Map infoMap) {
-        byte[] encodedInfo = BEncoder.encode(infoMap).value();
-
-        return DigestUtils.sha1Hex(encodedInfo);
-    }
-
     public static class FileInfo {
-        public String path = null;
+        public String path = null; //In multiple file mode: relative to the directory "name", separated by '/'
         public long length;
         public String md5sum = null; //optional
+        public ByteString piecesRoot = null; //v2: root of the file's Merkle tree, null for empty files
     }
 
     public static class Info {
         public String name; //In single file node: file name. In multiple file mode: path name
         public long piece_len; //piece length manatory
-        public List<ByteString> pieces = new ArrayList<ByteString>();
+        public PieceHashes pieces = NO_PIECES; //v1
         public boolean isPrivate = false;
-        public List<FileInfo> files = new ArrayList<FileInfo>();
+        public boolean isMultiFile = false;
+        public List<FileInfo> files = new ArrayList<FileInfo>(); //v1 files, or the file tree of a v2 only torrent
+        public int metaVersion = 1;
+        public List<FileInfo> fileTree = new ArrayList<FileInfo>(); //v2, paths as in files
     }
 }
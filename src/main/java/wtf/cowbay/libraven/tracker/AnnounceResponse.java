@@ -0,0 +1,366 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.tracker;
+
+import wtf.cowbay.libraven.bencode.BencodeReader;
+import wtf.cowbay.libraven.bencode.BencodeSchema;
+import wtf.cowbay.libraven.bencode.ByteString;
+import wtf.cowbay.libraven.compact.PeerList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Response of a tracker to an announce request. The known keys are read straight from the bencoded bytes,
+ * without building a map; peers, compact (<code>peers</code>, <code>peers6</code> of BEP 7) or not, are
+ * decoded into a {@link PeerList}, and the compact strings are also kept as views over the input.
+ * <p/>
+ * An instance is meant to be reused for many responses, e.g. one per thread: each call to
+ * <code>decode</code> clears the previous result and reuses the internal reader and peer list.
+ * Instances are not thread-safe.
+ *
+ * <pre>
+ * AnnounceResponse response = new AnnounceResponse();
+ * response.decode(body, 0, length);
+ * if (!response.isFailure()) {
+ *     PeerList peers = response.peers();
+ * }
+ * </pre>
+ */
+public class AnnounceResponse {
+    private static final BencodeSchema<AnnounceResponse> SCHEMA = new BencodeSchema<AnnounceResponse>() {
+        protected AnnounceResponse create() {
+            return new AnnounceResponse();
+        }
+    }.field(new BencodeSchema.Field<AnnounceResponse>("failure reason") {
+        protected void read(BencodeReader reader, AnnounceResponse response) throws IOException {
+            response.failureReason = reader.readString();
+        }
+    }).field(new BencodeSchema.Field<AnnounceResponse>("warning message") {
+        protected void read(BencodeReader reader, AnnounceResponse response) throws IOException {
+            response.warningMessage = reader.readString();
+        }
+    }).field(new BencodeSchema.Field<AnnounceResponse>("interval") {
+        protected void read(BencodeReader reader, AnnounceResponse response) throws IOException {
+            response.interval = (int) reader.readLong();
+        }
+    }).field(new BencodeSchema.Field<AnnounceResponse>("min interval") {
+        protected void read(BencodeReader reader, AnnounceResponse response) throws IOException {
+            response.minInterval = (int) reader.readLong();
+        }
+    }).field(new BencodeSchema.Field<AnnounceResponse>("tracker id") {
+        protected void read(BencodeReader reader, AnnounceResponse response) throws IOException {
+            response.trackerId = reader.readBytes();
+        }
+    }).field(new BencodeSchema.Field<AnnounceResponse>("complete") {
+        protected void read(BencodeReader reader, AnnounceResponse response) throws IOException {
+            response.complete = (int) reader.readLong();
+        }
+    }).field(new BencodeSchema.Field<AnnounceResponse>("incomplete") {
+        protected void read(BencodeReader reader, AnnounceResponse response) throws IOException {
+            response.incomplete = (int) reader.readLong();
+        }
+    }).field(new BencodeSchema.Field<AnnounceResponse>("peers") {
+        protected void read(BencodeReader reader, AnnounceResponse response) throws IOException {
+            if (reader.nextToken() == BencodeReader.Token.STRING) {
+                response.compactPeers = reader.readBytes();
+                response.peers.decodeIPv4(response.compactPeers);
+            } else {
+                readPeerDicts(reader, response.peers);
+            }
+        }
+    }).field(new BencodeSchema.Field<AnnounceResponse>("peers6") {
+        protected void read(BencodeReader reader, AnnounceResponse response) throws IOException {
+            response.compactPeers6 = reader.readBytes();
+            response.peers.decodeIPv6(response.compactPeers6);
+        }
+    });
+
+    private static final byte[][] PEER_KEYS = {"ip".getBytes(), "port".getBytes()};
+
+    private final BencodeReader reader = new BencodeReader(new byte[0]);
+    private final PeerList peers = new PeerList();
+    private String failureReason;
+    private String warningMessage;
+    private int interval;
+    private int minInterval;
+    private ByteString trackerId;
+    private int complete;
+    private int incomplete;
+    private ByteString compactPeers;
+    private ByteString compactPeers6;
+
+    public AnnounceResponse() {
+        clear();
+    }
+
+    public void clear() {
+        peers.clear();
+        failureReason = null;
+        warningMessage = null;
+        interval = -1;
+        minInterval = -1;
+        trackerId = null;
+        complete = -1;
+        incomplete = -1;
+        compactPeers = null;
+        compactPeers6 = null;
+    }
+
+    public void decode(byte[] bytes) throws IOException {
+        decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decode a response, replacing the previous one.
+     *
+     * @throws IllegalStateException if the response is not well-formed bencode
+     */
+    public void decode(byte[] bytes, int offset, int length) throws IOException {
+        reader.reset(bytes, offset, length);
+        decode(reader);
+    }
+
+    /**
+     * Decode the remaining bytes of <code>buf</code>; its position is not changed.
+     */
+    public void decode(ByteBuffer buf) throws IOException {
+        reader.reset(buf);
+        decode(reader);
+    }
+
+    /**
+     * Decode the dictionary <code>reader</code> is positioned on.
+     */
+    public void decode(BencodeReader reader) throws IOException {
+        clear();
+        SCHEMA.read(reader, this);
+    }
+
+    private static void readPeerDicts(BencodeReader reader, PeerList peers) throws IOException {
+        reader.beginList();
+        while (reader.hasNext()) {
+            String ip = null;
+            int port = -1;
+            reader.beginDict();
+            while (reader.hasNext()) {
+                switch (reader.readKey(PEER_KEYS)) {
+                    case 0:
+                        ip = reader.readString();
+                        break;
+                    case 1:
+                        port = (int) reader.readLong();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endDict();
+            if (ip != null && port >= 0 && port <= 0xFFFF) {
+                addPeer(peers, ip, port);
+            }
+        }
+        reader.endList();
+    }
+
+    /**
+     * Add a peer of the original, non-compact form. Only address literals are taken, parsed here so that
+     * nothing is ever handed to the resolver; host names and malformed addresses are left out.
+     */
+    private static void addPeer(PeerList peers, String ip, int port) {
+        if (ip.indexOf(':') < 0) {
+            try {
+                peers.addIPv4(PeerList.address(PeerList.parseIPv4(ip + ":" + port)), port);
+            } catch (IllegalArgumentException e) {
+                //not a dotted quad
+            }
+            return;
+        }
+
+        byte[] address = parseIPv6(ip);
+        if (address == null) {
+            return;
+        }
+        boolean mapped = address[10] == (byte) 0xFF && address[11] == (byte) 0xFF;
+        for (int i = 0; mapped && i < 10; i++) {
+            mapped = address[i] == 0;
+        }
+        if (mapped) {
+            peers.addIPv4(ByteBuffer.wrap(address, 12, 4).getInt(), port);
+        } else {
+            peers.addIPv6(address, 0, port);
+        }
+    }
+
+    /**
+     * Parse an IPv6 literal, optionally in brackets, with <code>::</code> and a dotted-quad tail allowed.
+     *
+     * @return the 16 address bytes, or null if <code>ip</code> isn't one
+     */
+    static byte[] parseIPv6(String ip) {
+        if (ip.startsWith("[") && ip.endsWith("]")) {
+            ip = ip.substring(1, ip.length() - 1);
+        }
+        byte[] address = new byte[16];
+        int n = ip.length();
+        int pos = 0;
+        int gap = -1; //where "::" was, in bytes
+        int i = 0;
+        if (ip.startsWith("::")) {
+            gap = 0;
+            i = 2;
+        }
+        while (i < n) {
+            int value = 0;
+            int end = i;
+            while (end < n && end - i < 4 && hex(ip.charAt(end)) >= 0) {
+                value = (value << 4) | hex(ip.charAt(end++));
+            }
+            if (end < n && ip.charAt(end) == '.') {
+                if (pos > 12) {
+                    return null;
+                }
+                int v4;
+                try {
+                    v4 = PeerList.address(PeerList.parseIPv4(ip.substring(i) + ":0"));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+                ByteBuffer.wrap(address, pos, 4).putInt(v4);
+                pos += 4;
+                break;
+            }
+            if (end == i || pos == 16) {
+                return null;
+            }
+            address[pos++] = (byte) (value >>> 8);
+            address[pos++] = (byte) value;
+            if (end == n) {
+                break;
+            }
+            if (ip.charAt(end) != ':' || end + 1 == n) {
+                return null;
+            }
+            if (ip.charAt(end + 1) == ':') {
+                if (gap >= 0) {
+                    return null;
+                }
+                gap = pos;
+                i = end + 2;
+            } else {
+                i = end + 1;
+            }
+        }
+
+        if (gap < 0) {
+            return pos == 16 ? address : null;
+        }
+        if (pos == 16) {
+            return null;
+        }
+        int tail = pos - gap;
+        System.arraycopy(address, gap, address, 16 - tail, tail);
+        Arrays.fill(address, gap, 16 - tail, (byte) 0);
+        return address;
+    }
+
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    public boolean isFailure() {
+        return failureReason != null;
+    }
+
+    /**
+     * Human-readable reason of a failed announce; no other field is expected then.
+     */
+    public String failureReason() {
+        return failureReason;
+    }
+
+    public String warningMessage() {
+        return warningMessage;
+    }
+
+    /**
+     * Seconds to wait between regular announces, or -1 if absent.
+     */
+    public int interval() {
+        return interval;
+    }
+
+    /**
+     * Minimum seconds between announces, or -1 if absent.
+     */
+    public int minInterval() {
+        return minInterval;
+    }
+
+    /**
+     * Id to send back with the next announces, or null.
+     */
+    public ByteString trackerId() {
+        return trackerId;
+    }
+
+    /**
+     * Number of seeders, or -1 if absent.
+     */
+    public int complete() {
+        return complete;
+    }
+
+    /**
+     * Number of leechers, or -1 if absent.
+     */
+    public int incomplete() {
+        return incomplete;
+    }
+
+    /**
+     * Peers of the response, IPv4 and IPv6. The list is reused by the next <code>decode</code>.
+     */
+    public PeerList peers() {
+        return peers;
+    }
+
+    /**
+     * The compact <code>peers</code> string as a view over the input, or null if absent or not compact.
+     * Only valid as long as the input is not modified.
+     */
+    public ByteString compactPeers() {
+        return compactPeers;
+    }
+
+    /**
+     * The compact <code>peers6</code> string as a view over the input, or null if absent.
+     */
+    public ByteString compactPeers6() {
+        return compactPeers6;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.tracker;
+
+import wtf.cowbay.libraven.bencode.BencodeReader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streams the <code>files</code> dictionary of a scrape response: each torrent is passed to a
+ * {@link Visitor} as soon as it has been read, so responses covering many torrents are handled without
+ * building a map of them. Info-hashes are read into a reused array and the counters into primitives; a
+ * response is parsed without allocating, apart from a failure reason.
+ * <p/>
+ * An instance is meant to be reused for many responses; instances are not thread-safe.
+ */
+public class ScrapeParser {
+    public interface Visitor {
+        /**
+         * Called for each torrent of the response.
+         *
+         * @param infoHash   20-byte info-hash; the array is reused, copy it to keep it
+         * @param complete   number of seeders, or -1 if absent
+         * @param downloaded number of completed downloads, or -1 if absent
+         * @param incomplete number of leechers, or -1 if absent
+         */
+        void file(byte[] infoHash, int complete, int downloaded, int incomplete) throws IOException;
+    }
+
+    private static final byte[][] KEYS = {"files".getBytes(), "failure reason".getBytes()};
+    private static final byte[][] FILE_KEYS = {"complete".getBytes(), "downloaded".getBytes(), "incomplete".getBytes()};
+    private static final int INFO_HASH_LENGTH = 20;
+
+    private final BencodeReader reader = new BencodeReader(new byte[0]);
+    private final byte[] infoHash = new byte[INFO_HASH_LENGTH];
+    private String failureReason;
+
+    public int parse(byte[] bytes, Visitor visitor) throws IOException {
+        return parse(bytes, 0, bytes.length, visitor);
+    }
+
+    /**
+     * Parse a scrape response, passing each torrent to <code>visitor</code>.
+     *
+     * @return number of torrents visited
+     * @throws IllegalStateException if the response is not well-formed
+     */
+    public int parse(byte[] bytes, int offset, int length, Visitor visitor) throws IOException {
+        reader.reset(bytes, offset, length);
+        return parse(reader, visitor);
+    }
+
+    /**
+     * Parse the remaining bytes of <code>buf</code>; its position is not changed.
+     */
+    public int parse(ByteBuffer buf, Visitor visitor) throws IOException {
+        reader.reset(buf);
+        return parse(reader, visitor);
+    }
+
+    /**
+     * Parse the dictionary <code>reader</code> is positioned on.
+     */
+    public int parse(BencodeReader reader, Visitor visitor) throws IOException {
+        failureReason = null;
+        int count = 0;
+
+        reader.beginDict();
+        while (reader.hasNext()) {
+            switch (reader.readKey(KEYS)) {
+                case 0:
+                    count += readFiles(reader, visitor);
+                    break;
+                case 1:
+                    failureReason = reader.readString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endDict();
+        return count;
+    }
+
+    private int readFiles(BencodeReader reader, Visitor visitor) throws IOException {
+        int count = 0;
+        reader.beginDict();
+        while (reader.hasNext()) {
+            if (reader.readBytes(infoHash, 0) != INFO_HASH_LENGTH) {
+                throw new IllegalStateException("Info-hash should be 20 bytes");
+            }
+
+            int complete = -1;
+            int downloaded = -1;
+            int incomplete = -1;
+            reader.beginDict();
+            while (reader.hasNext()) {
+                switch (reader.readKey(FILE_KEYS)) {
+                    case 0:
+                        complete = (int) reader.readLong();
+                        break;
+                    case 1:
+                        downloaded = (int) reader.readLong();
+                        break;
+                    case 2:
+                        incomplete = (int) reader.readLong();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endDict();
+
+            visitor.file(infoHash, complete, downloaded, incomplete);
+            count++;
+        }
+        reader.endDict();
+        return count;
+    }
+
+    /**
+     * Reason of a failed scrape in the last parsed response, or null.
+     */
+    public String failureReason() {
+        return failureReason;
+    }
+}
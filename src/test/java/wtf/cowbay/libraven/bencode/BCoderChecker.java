@@ -22,6 +22,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class BCoderChecker {
@@ -95,6 +96,41 @@ public class BCoderChecker {
         Assert.assertEquals("encode map complex", "d6:attachd1:ai1e1:bi3e1:cli4ei5e3:abcee6:emailsl13:a@example.com9:b@aaa.come4:name6:Juliane", BEncoder.encode(generateComplexMap()).toString());
     }
 
+    @Test
+    public void checkEncodeStreaming() throws IOException {
+        Map map = generateComplexMap();
+        map.put("binary", new byte[]{(byte) 0xFF, 0, (byte) 0x80});
+        map.put("empty", new ArrayList());
+        map.put("numbers", Arrays.asList(0L, -1L, 9L, 10L, -10L, Long.MAX_VALUE, Long.MIN_VALUE));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BEncoder.encode(map, out);
+        byte[] encoded = out.toByteArray();
+
+        Assert.assertEquals(encoded.length, BEncoder.encodedLength(map));
+        Assert.assertArrayEquals(encoded, BEncoder.encode(map).value());
+
+        //over 2 GB encoded, sharing one 1 MB array
+        List huge = Collections.nCopies(2100, new byte[1 << 20]);
+        Assert.assertTrue(BEncoder.encodedLength(huge) > Integer.MAX_VALUE);
+        try {
+            BEncoder.encode(huge);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate((int) BEncoder.encodedLength(map));
+        BEncoder.encode(map, buf);
+        Assert.assertFalse(buf.hasRemaining());
+        Assert.assertArrayEquals(encoded, buf.array());
+
+        String str = new String(encoded, "ISO-8859-1");
+        Assert.assertTrue(str.contains("6:binary3:\u00FF\u0000\u0080"));
+        Assert.assertTrue(str.contains("5:emptyle"));
+        Assert.assertTrue(str.contains("li0ei-1ei9ei10ei-10ei9223372036854775807ei-9223372036854775808ee"));
+    }
+
     @Test
     public void checkDecodeInteger() throws IOException {
         Assert.assertEquals((new BDecoder("i42e")).decode(), 42l);
@@ -147,6 +183,44 @@ public class BCoderChecker {
         new BDecoder("d6:attachd1:ai1e1:bi3e1:cli4ei5e3:abcee6:emailsl13:a@example.com9:b@aaa.come4:name6:Juliane").decode();
     }
 
+    @Test
+    public void checkByteStringView() throws IOException {
+        byte[] input = "l5:hello5:worlde".getBytes();
+        List list = (List) new BDecoder(input).decode();
+        ByteString hello = (ByteString) list.get(0);
+
+        Assert.assertEquals("hello", hello.toString());
+        Assert.assertEquals('e', hello.byteAt(1));
+        Assert.assertEquals(new ByteString("hello"), hello);
+        Assert.assertEquals(new ByteString("hello").hashCode(), hello.hashCode());
+        Assert.assertEquals("orl", ((ByteString) list.get(1)).slice(1, 4).toString());
+
+        //views share the input instead of copying it
+        input[3] = 'j';
+        Assert.assertEquals("jello", hello.toString());
+
+        try {
+            hello.set(0, (byte) 'x');
+            Assert.fail("Views should be read-only");
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(5);
+        direct.put("hello".getBytes()).flip();
+        ByteString bufferView = ByteString.wrap(direct);
+        Assert.assertEquals(new ByteString("hello"), bufferView);
+        Assert.assertEquals(new ByteString("hello").hashCode(), bufferView.hashCode());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bufferView.slice(1, 5).writeTo(out);
+        Assert.assertEquals("ello", out.toString());
+
+        ByteBuffer dest = ByteBuffer.allocate(5);
+        bufferView.copyTo(dest);
+        Assert.assertArrayEquals("hello".getBytes(), dest.array());
+    }
+
     @Test
     public void checkLoadFromFStream() throws IOException {
         File input = FileUtils.toFile(getClass().getResource("/test.torrent"));
@@ -170,4 +244,54 @@ public class BCoderChecker {
 
         Assert.assertArrayEquals(BEncoder.encode(map).value(), out.toByteArray());
     }
+
+    @Test
+    public void checkDict() throws IOException {
+        BDict dict = (BDict) new BDecoder("d1:ai1e1:bi2e2:bbi3ee").decode();
+        Assert.assertEquals(3, dict.size());
+        Assert.assertEquals(2L, dict.get("b"));
+        Assert.assertEquals(3L, dict.get(new ByteString("bb")));
+        Assert.assertNull(dict.get("c"));
+        Assert.assertEquals("bb", dict.keyAt(2).toString());
+
+        Map expected = new HashMap();
+        expected.put("a", 1L);
+        expected.put("b", 2L);
+        expected.put("bb", 3L);
+        Assert.assertEquals(expected, dict);
+        Assert.assertEquals(dict, expected);
+        Assert.assertEquals(expected.hashCode(), dict.hashCode());
+
+        //out of order insertion, removal while iterating
+        dict.put("aa", 4L);
+        dict.put(new ByteString("0"), 5L);
+        Assert.assertEquals("d1:0i5e1:ai1e2:aai4e1:bi2e2:bbi3ee", BEncoder.encode(dict).toString());
+        Iterator<Map.Entry<String, Object>> it = dict.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getKey().startsWith("a")) {
+                it.remove();
+            }
+        }
+        Assert.assertEquals("d1:0i5e1:bi2e2:bbi3ee", BEncoder.encode(dict).toString());
+        Assert.assertEquals(5L, dict.remove("0"));
+        Assert.assertFalse(dict.containsKey("0"));
+
+        //keys of plain maps are sorted by raw bytes, not by UTF-16 chars
+        Map map = new HashMap();
+        map.put(new byte[]{(byte) 0xFF}, 1);
+        map.put("a", 2);
+        map.put(new ByteString(new byte[]{0x7F}), 3);
+        ByteString encoded = BEncoder.encode(map);
+        Assert.assertEquals(encoded.length(), BEncoder.encodedLength(map));
+        Assert.assertArrayEquals(new byte[]{'d', '1', ':', 'a', 'i', '2', 'e', '1', ':', 0x7F, 'i', '3', 'e', '1', ':', (byte) 0xFF, 'i', '1', 'e', 'e'}, encoded.value());
+        Assert.assertEquals(1L, ((BDict) new BDecoder(encoded.value()).decode()).get(new byte[]{(byte) 0xFF}));
+
+        map.put(new ByteString("a"), 4);
+        try {
+            BEncoder.encode(map);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class BencodeReaderChecker {
+    private static final String DOC = "d8:completei12e5:filesld6:lengthi1e4:pathl1:aeed6:lengthi2e4:pathl1:beee8:intervali-1800e5:peers6:abcdefe";
+
+    private void walk(BencodeReader reader) throws IOException {
+        reader.beginDict();
+
+        Assert.assertEquals(BencodeReader.Token.STRING, reader.nextToken());
+        Assert.assertEquals("complete", reader.readString());
+        Assert.assertEquals(12, reader.readLong());
+
+        Assert.assertEquals("files", reader.readString());
+        Assert.assertEquals(BencodeReader.Token.LIST, reader.nextToken());
+        reader.skipValue();
+
+        Assert.assertEquals("interval", reader.readString());
+        Assert.assertEquals(-1800, reader.readLong());
+
+        Assert.assertEquals("peers", reader.readString());
+        Assert.assertEquals("abcdef", reader.readBytes().toString());
+
+        Assert.assertFalse(reader.hasNext());
+        Assert.assertEquals(BencodeReader.Token.END, reader.nextToken());
+        reader.endDict();
+        Assert.assertEquals(BencodeReader.Token.EOF, reader.nextToken());
+        Assert.assertEquals(DOC.length(), reader.position());
+    }
+
+    @Test
+    public void checkPullArray() throws IOException {
+        walk(new BencodeReader(DOC.getBytes()));
+    }
+
+    @Test
+    public void checkPullStream() throws IOException {
+        walk(new BencodeReader(new ByteArrayInputStream(DOC.getBytes())));
+    }
+
+    @Test
+    public void checkNested() throws IOException {
+        BencodeReader reader = new BencodeReader(DOC.getBytes());
+        reader.beginDict();
+        reader.skipValue();
+        reader.skipValue();
+        Assert.assertEquals("files", reader.readString());
+
+        reader.beginList();
+        int count = 0;
+        while (reader.hasNext()) {
+            reader.beginDict();
+            Assert.assertEquals(3, reader.depth());
+            Assert.assertEquals("length", reader.readString());
+            Assert.assertEquals(++count, reader.readLong());
+            reader.skipValue();
+            reader.skipValue();
+            reader.endDict();
+        }
+        reader.endList();
+        Assert.assertEquals(2, count);
+        Assert.assertEquals(1, reader.depth());
+    }
+
+    @Test
+    public void checkIntegerLimits() throws IOException {
+        Assert.assertEquals(Long.MAX_VALUE, new BencodeReader("i9223372036854775807e".getBytes()).readLong());
+        Assert.assertEquals(Long.MIN_VALUE, new BencodeReader("i-9223372036854775808e".getBytes()).readLong());
+
+        String[] wrong = {"i9223372036854775808e", "i-9223372036854775809e", "ie", "i-e", "i1-2e", "i12"};
+        for (String str : wrong) {
+            try {
+                new BencodeReader(str.getBytes()).readLong();
+                Assert.fail(str + " should not be decoded");
+            } catch (IllegalStateException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void checkTruncated() throws IOException {
+        String[] truncated = {"l1:a", "d1:ai1e", "5:abc", "li1e"};
+        for (String str : truncated) {
+            try {
+                new BencodeReader(new ByteArrayInputStream(str.getBytes())).skipValue();
+                Assert.fail(str + " should not be decoded");
+            } catch (IllegalStateException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void checkReset() throws IOException {
+        byte[][] keys = {"a".getBytes(), "t".getBytes(), "y".getBytes()};
+        byte[] id = new byte[20];
+
+        BencodeReader reader = new BencodeReader(DOC.getBytes());
+        reader.skipValue();
+
+        String[] messages = {"d1:ad2:id20:abcdefghij0123456789e1:t2:aa1:y1:qe", "d1:t2:bb1:y1:r1:zi3ee"};
+        for (int m = 0; m < messages.length; m++) {
+            reader.reset(messages[m].getBytes());
+            Assert.assertEquals(0, reader.depth());
+            reader.beginDict();
+            while (reader.hasNext()) {
+                switch (reader.readKey(keys)) {
+                    case 0:
+                        reader.beginDict();
+                        Assert.assertEquals(-1, reader.readKey(keys));
+                        Assert.assertEquals(20, reader.readBytes(id, 0));
+                        reader.endDict();
+                        break;
+                    case 1:
+                        Assert.assertEquals(m == 0 ? "aa" : "bb", reader.readString());
+                        break;
+                    case 2:
+                        Assert.assertEquals(m == 0 ? "q" : "r", reader.readString());
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endDict();
+        }
+        Assert.assertEquals("abcdefghij0123456789", new String(id));
+
+        //keys read from a stream
+        reader = new BencodeReader(new ByteArrayInputStream("d1:t2:cc5:other1:xe".getBytes()));
+        reader.beginDict();
+        Assert.assertEquals(1, reader.readKey(keys));
+        reader.skipValue();
+        Assert.assertEquals(-1, reader.readKey(keys));
+        reader.skipValue();
+        reader.endDict();
+
+        BDecoder decoder = new BDecoder("i1e");
+        Assert.assertEquals(1L, decoder.decode());
+        decoder.reset("i2e".getBytes());
+        Assert.assertEquals(2L, decoder.decode());
+    }
+
+    private static class Peer {
+        String ip;
+        long port;
+    }
+
+    @Test
+    public void checkSchema() throws IOException {
+        BencodeSchema<Peer> schema = new BencodeSchema<Peer>() {
+            protected Peer create() {
+                return new Peer();
+            }
+        }.field(new BencodeSchema.Field<Peer>("ip", true) {
+            protected void read(BencodeReader reader, Peer peer) throws IOException {
+                peer.ip = reader.readString();
+            }
+        }).field(new BencodeSchema.Field<Peer>("port") {
+            protected void read(BencodeReader reader, Peer peer) throws IOException {
+                peer.port = reader.readLong();
+            }
+        });
+
+        List<Peer> peers = schema.readList(new BencodeReader("ld2:ip3:1.27:peer id2:ab4:porti80eed2:ip3:2.3ee".getBytes()));
+        Assert.assertEquals(2, peers.size());
+        Assert.assertEquals("1.2", peers.get(0).ip);
+        Assert.assertEquals(80, peers.get(0).port);
+        Assert.assertEquals("2.3", peers.get(1).ip);
+
+        try {
+            schema.read(new BencodeReader("d4:porti80ee".getBytes()));
+            Assert.fail("Missing ip should be detected");
+        } catch (IOException e) {
+            Assert.assertEquals("Missing field: ip", e.getMessage());
+        }
+    }
+
+    @Test
+    public void checkPushParser() throws IOException {
+        byte[] doc = DOC.getBytes();
+        Object expected = new BDecoder(doc).decode();
+
+        for (int chunk = 1; chunk <= doc.length; chunk += 6) {
+            BencodePushParser.TreeBuilder tree = new BencodePushParser.TreeBuilder();
+            BencodePushParser parser = new BencodePushParser(tree);
+            for (int i = 0; i < doc.length; i += chunk) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(Math.min(chunk, doc.length - i));
+                buf.put(doc, i, buf.remaining()).flip();
+                boolean done = parser.feed(buf);
+                Assert.assertEquals(i + chunk >= doc.length, done);
+                Assert.assertEquals(done, !parser.isPartial());
+                Assert.assertFalse(buf.hasRemaining());
+            }
+            Assert.assertEquals(expected, tree.value());
+        }
+
+        //several values in one buffer
+        BencodePushParser.TreeBuilder tree = new BencodePushParser.TreeBuilder();
+        BencodePushParser parser = new BencodePushParser(tree);
+        ByteBuffer buf = ByteBuffer.wrap("i42e0:li-1ee3:ab".getBytes());
+        Assert.assertTrue(parser.feed(buf));
+        Assert.assertEquals(42L, tree.value());
+        Assert.assertTrue(parser.feed(buf));
+        Assert.assertEquals("", tree.value().toString());
+        Assert.assertTrue(parser.feed(buf));
+        Assert.assertEquals(1, ((List) tree.value()).size());
+        Assert.assertFalse(parser.feed(buf));
+        Assert.assertTrue(parser.isPartial());
+        Assert.assertTrue(parser.feed(ByteBuffer.wrap("c".getBytes())));
+        Assert.assertEquals("abc", tree.value().toString());
+
+        parser.setMaxDepth(2);
+        parser.setMaxStringLength(4);
+        String[] invalid = {"llli1eeee", "5:abcde", "di1ei2ee", "d1:ae", "e", "i-e", "x"};
+        for (String input : invalid) {
+            parser.reset();
+            tree.reset();
+            try {
+                parser.feed(ByteBuffer.wrap(input.getBytes()));
+                Assert.fail(input);
+            } catch (IllegalStateException e) {
+                //expected
+            }
+        }
+
+        //the stack can't shrink under a partial value
+        parser.reset();
+        tree.reset();
+        Assert.assertFalse(parser.feed(ByteBuffer.wrap("ll".getBytes())));
+        try {
+            parser.setMaxDepth(1);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        Assert.assertTrue(parser.feed(ByteBuffer.wrap("ee".getBytes())));
+        parser.setMaxDepth(1);
+        Assert.assertFalse(parser.isPartial());
+    }
+}
@@ -20,8 +20,14 @@ import org.apache.commons.codec.binary.Hex;
 import org.junit.Assert;
 import org.junit.Test;
 import wtf.cowbay.libraven.compact.CompactCoder;
+import wtf.cowbay.libraven.compact.CompactPeerSet;
+import wtf.cowbay.libraven.compact.PeerList;
 
-import java.util.List;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.*;
 
 
 public class CompactCoderChecker {
@@ -44,4 +50,108 @@ public class CompactCoderChecker {
         result = CompactCoder.compact2strings(compacts);
         Assert.assertEquals(result.get(0), "10.10.10.5:128");
     }
+
+    @Test
+    public void checkMultiplePeers() {
+        byte[] src = {0x0A, 0x0A, 0x0A, 0x05, 0x00, (byte) 0x80, (byte) 0xC0, (byte) 0xA8, 0x01, (byte) 0xFE, 0x1A, (byte) 0xE1};
+        List<String> result = CompactCoder.compact2strings(src);
+        Assert.assertEquals(Arrays.asList("10.10.10.5:128", "192.168.1.254:6881"), result);
+        Assert.assertArrayEquals(src, CompactCoder.strings2compact(result));
+
+        String[] wrong = {"1.2.3:80", "1.2.3.256:80", "1.2.3.4", "1.2.3.4:65536", "1..2.3:4", "1.2.3.4:80x"};
+        for (String peer : wrong) {
+            try {
+                PeerList.parseIPv4(peer);
+                Assert.fail(peer + " should not be parsed");
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void checkPeerList() throws UnknownHostException {
+        byte[] v4 = CompactCoder.strings2compact(Arrays.asList("1.2.3.4:80", "255.255.255.255:65535"));
+        byte[] v6 = new byte[2 * PeerList.IPV6_LENGTH];
+        byte[] loopback = InetAddress.getByName("::1").getAddress();
+        System.arraycopy(loopback, 0, v6, 0, 16);
+        v6[17] = 0x50;
+        v6[PeerList.IPV6_LENGTH] = 0x20;
+        v6[PeerList.IPV6_LENGTH + 17] = 0x51;
+
+        PeerList peers = new PeerList();
+        Assert.assertEquals(2, peers.decodeIPv4(ByteBuffer.wrap(v4)));
+        Assert.assertEquals(2, peers.decodeIPv6(new ByteString(v6)));
+        Assert.assertEquals(4, peers.size());
+        Assert.assertEquals(65535, PeerList.port(peers.ipv4At(1)));
+        Assert.assertEquals(0x01020304, PeerList.address(peers.ipv4At(0)));
+        Assert.assertEquals(81, peers.ipv6Port(1));
+
+        ByteBuffer buf = ByteBuffer.allocate(v4.length + v6.length);
+        peers.encodeIPv4(buf);
+        peers.encodeIPv6(buf);
+        Assert.assertFalse(buf.hasRemaining());
+        Assert.assertArrayEquals(v4, peers.toCompactIPv4());
+        Assert.assertArrayEquals(v6, peers.toCompactIPv6());
+
+        List<InetSocketAddress> addresses = peers.toSocketAddresses();
+        Assert.assertEquals(new InetSocketAddress("1.2.3.4", 80), addresses.get(0));
+        Assert.assertEquals(new InetSocketAddress(InetAddress.getByAddress(loopback), 80), addresses.get(2));
+
+        peers.clear();
+        peers.addIPv4("10.0.0.1:6881");
+        Assert.assertEquals(1, peers.size());
+        Assert.assertEquals("10.0.0.1:6881", PeerList.formatIPv4(peers.ipv4At(0)));
+    }
+
+    @Test
+    public void checkPeerSet() {
+        CompactPeerSet set = new CompactPeerSet();
+        byte[] first = CompactCoder.strings2compact(Arrays.asList("1.2.3.4:80", "5.6.7.8:81"));
+        byte[] second = CompactCoder.strings2compact(Arrays.asList("5.6.7.8:81", "5.6.7.8:82"));
+        Assert.assertEquals(2, set.addAll(first, 1000));
+        Assert.assertEquals(1, set.addAll(second, 5000));
+        Assert.assertEquals(3, set.size());
+        Assert.assertTrue(set.containsIPv4(PeerList.parseIPv4("5.6.7.8:82")));
+
+        byte[] v6 = new byte[PeerList.IPV6_LENGTH];
+        v6[15] = 1;
+        Assert.assertEquals(1, set.addAllIPv6(v6, 1000));
+        Assert.assertEquals(0, set.addAllIPv6(v6, 1000));
+        Assert.assertEquals(4, set.size());
+
+        //1.2.3.4:80 and the IPv6 peer were only seen at 1000
+        Assert.assertEquals(2, set.expire(2000));
+        Assert.assertEquals(CompactCoder.strings2compact(Arrays.asList("5.6.7.8:81", "5.6.7.8:82")).length, set.toCompactIPv4().length);
+        Assert.assertFalse(set.containsIPv4(PeerList.parseIPv4("1.2.3.4:80")));
+        Assert.assertTrue(set.containsIPv4(PeerList.parseIPv4("5.6.7.8:81")));
+        Assert.assertEquals(0, set.ipv6Count());
+
+        //a cutoff within the second a peer was seen keeps it
+        CompactPeerSet recent = new CompactPeerSet();
+        recent.addIPv4(PeerList.parseIPv4("1.2.3.4:80"), 1500);
+        Assert.assertEquals(0, recent.expire(1200));
+        Assert.assertEquals(0, recent.expire(1999));
+        Assert.assertEquals(1, recent.size());
+        Assert.assertEquals(1, recent.expire(2000));
+        Assert.assertEquals(0, recent.size());
+
+        //grow well past the initial capacity
+        Random random = new Random(7);
+        byte[] many = new byte[6 * 10000];
+        random.nextBytes(many);
+        set.addAll(many, 10000);
+        Assert.assertEquals(0, set.addAll(many, 10000));
+        Assert.assertTrue(set.size() > 9990);
+
+        PeerList sample = set.sample(50, random);
+        Assert.assertEquals(50, sample.size());
+        Set<Long> distinct = new HashSet<Long>();
+        for (int i = 0; i < sample.ipv4Count(); i++) {
+            Assert.assertTrue(set.containsIPv4(sample.ipv4At(i)));
+            distinct.add(sample.ipv4At(i));
+        }
+        Assert.assertEquals(50, distinct.size());
+        Assert.assertEquals(set.size(), set.sample(set.size() + 1, random).size());
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import org.junit.Assert;
+import org.junit.Test;
+import wtf.cowbay.libraven.compact.PeerList;
+import wtf.cowbay.libraven.dht.KrpcCodec;
+import wtf.cowbay.libraven.dht.KrpcMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+public class KrpcCodecChecker {
+    private static final byte[] ID = "abcdefghij0123456789".getBytes();
+    private static final byte[] INFO_HASH = "mnopqrstuvwxyz123456".getBytes();
+
+    private static byte[] encode(KrpcCodec codec, KrpcMessage message) {
+        ByteBuffer buf = ByteBuffer.allocate(1500);
+        codec.encode(message, buf);
+        buf.flip();
+        byte[] result = new byte[buf.remaining()];
+        buf.get(result);
+        return result;
+    }
+
+    @Test
+    public void checkQueries() throws IOException {
+        KrpcCodec codec = new KrpcCodec();
+        KrpcMessage message = new KrpcMessage();
+
+        message.query(KrpcMessage.Method.PING, "aa".getBytes(), 2);
+        System.arraycopy(ID, 0, message.id, 0, ID.length);
+        Assert.assertEquals("d1:ad2:id20:abcdefghij0123456789e1:q4:ping1:t2:aa1:y1:qe", new String(encode(codec, message)));
+
+        message.query(KrpcMessage.Method.ANNOUNCE_PEER, "aa".getBytes(), 2);
+        System.arraycopy(ID, 0, message.id, 0, ID.length);
+        System.arraycopy(INFO_HASH, 0, message.infoHash, 0, INFO_HASH.length);
+        message.impliedPort = true;
+        message.port = 6881;
+        message.setToken("aoeusnth".getBytes(), 0, 8);
+        message.setVersion("LR01".getBytes(), 0, 4);
+        byte[] encoded = encode(codec, message);
+
+        Map<String, Object> args = new HashMap<String, Object>();
+        args.put("id", ID);
+        args.put("implied_port", 1);
+        args.put("info_hash", INFO_HASH);
+        args.put("port", 6881);
+        args.put("token", "aoeusnth");
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("a", args);
+        map.put("q", "announce_peer");
+        map.put("t", "aa");
+        map.put("v", "LR01");
+        map.put("y", "q");
+        Assert.assertArrayEquals(BEncoder.encode(map).value(), encoded);
+
+        KrpcMessage decoded = new KrpcMessage();
+        codec.decode(encoded, decoded);
+        Assert.assertEquals(KrpcMessage.Type.QUERY, decoded.type);
+        Assert.assertEquals(KrpcMessage.Method.ANNOUNCE_PEER, decoded.method);
+        Assert.assertTrue(decoded.sameTransaction(message));
+        Assert.assertArrayEquals(ID, decoded.id);
+        Assert.assertArrayEquals(INFO_HASH, decoded.infoHash);
+        Assert.assertTrue(decoded.impliedPort);
+        Assert.assertEquals(6881, decoded.port);
+        Assert.assertEquals("aoeusnth", new String(decoded.token, 0, decoded.tokenLength));
+        Assert.assertEquals("LR01", new String(decoded.version, 0, decoded.versionLength));
+
+        //unknown methods are decoded, so they can be answered with an error
+        codec.decode("d1:ad2:id20:abcdefghij0123456789e1:q4:vote1:t2:aa1:y1:qe".getBytes(), decoded);
+        Assert.assertEquals(KrpcMessage.Type.QUERY, decoded.type);
+        Assert.assertNull(decoded.method);
+
+        try {
+            codec.decode("d1:ade1:q9:find_node1:t2:aa1:y1:qe".getBytes(), decoded);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void checkResponses() throws IOException {
+        KrpcCodec codec = new KrpcCodec();
+        KrpcMessage query = new KrpcMessage();
+        query.query(KrpcMessage.Method.GET_PEERS, new byte[]{0, 1}, 2);
+
+        KrpcMessage response = new KrpcMessage().response(query);
+        System.arraycopy(ID, 0, response.id, 0, ID.length);
+        response.nodes.add(INFO_HASH, 0, 0x0A000001, 6881);
+        response.nodes.add(ID, 0, 0xC0A80102, 51413);
+        response.setToken("tok".getBytes(), 0, 3);
+        response.values.addIPv4(0x0A000002, 6882);
+        byte[] address = new byte[16];
+        address[15] = 1;
+        response.values.addIPv6(address, 0, 80);
+        byte[] encoded = encode(codec, response);
+
+        Map<String, Object> r = new TreeMap<String, Object>();
+        r.put("id", ID);
+        r.put("nodes", response.nodes.toCompact());
+        r.put("token", "tok");
+        r.put("values", Arrays.asList(new byte[]{10, 0, 0, 2, 0x1A, (byte) 0xE2}, response.values.toCompactIPv6()));
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("r", r);
+        map.put("t", new byte[]{0, 1});
+        map.put("y", "r");
+        Assert.assertArrayEquals(BEncoder.encode(map).value(), encoded);
+
+        KrpcMessage decoded = new KrpcMessage();
+        codec.decode(ByteBuffer.wrap(encoded), decoded);
+        Assert.assertEquals(KrpcMessage.Type.RESPONSE, decoded.type);
+        Assert.assertTrue(decoded.sameTransaction(query));
+        Assert.assertEquals(2, decoded.nodes.size());
+        Assert.assertTrue(decoded.nodes.idEquals(1, ID, 0));
+        Assert.assertEquals("192.168.1.2:51413", PeerList.formatIPv4(decoded.nodes.peerAt(1)));
+        Assert.assertEquals(1, decoded.values.ipv4Count());
+        Assert.assertEquals("10.0.0.2:6882", PeerList.formatIPv4(decoded.values.ipv4At(0)));
+        Assert.assertEquals(80, decoded.values.ipv6Port(0));
+        Assert.assertEquals(3, decoded.tokenLength);
+        Assert.assertArrayEquals(response.nodes.toCompact(), decoded.nodes.toCompact());
+    }
+
+    @Test
+    public void checkErrors() throws IOException {
+        KrpcCodec codec = new KrpcCodec();
+        KrpcMessage query = new KrpcMessage().query(KrpcMessage.Method.PING, "aa".getBytes(), 2);
+        KrpcMessage error = new KrpcMessage().error(query, KrpcMessage.ERROR_GENERIC, "A Generic Error Ocurred");
+        byte[] encoded = encode(codec, error);
+        Assert.assertEquals("d1:eli201e23:A Generic Error Ocurrede1:t2:aa1:y1:ee", new String(encoded));
+
+        KrpcMessage decoded = new KrpcMessage();
+        codec.decode(encoded, decoded);
+        Assert.assertEquals(KrpcMessage.Type.ERROR, decoded.type);
+        Assert.assertEquals(201, decoded.errorCode);
+        Assert.assertEquals("A Generic Error Ocurred", decoded.errorMessage);
+    }
+}
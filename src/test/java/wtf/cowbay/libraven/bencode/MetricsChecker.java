@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import wtf.cowbay.libraven.metrics.Metrics;
+import wtf.cowbay.libraven.metrics.MetricsListener;
+import wtf.cowbay.libraven.metrics.MetricsRegistry;
+import wtf.cowbay.libraven.torrent.TorrentMeta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+
+public class MetricsChecker {
+    @After
+    public void uninstall() {
+        Metrics.setListener(null);
+    }
+
+    @Test
+    public void checkRegistry() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        Metrics.setListener(registry);
+
+        byte[] doc = "d1:ali1ei2eld1:b1:ceee1:d3:xyze".getBytes();
+        Object value = new BDecoder(doc).decode();
+        Map<String, Long> snapshot = registry.snapshot();
+        Assert.assertEquals(1L, (long) snapshot.get("decode.count"));
+        Assert.assertEquals(doc.length, (long) snapshot.get("decode.bytes"));
+        Assert.assertEquals(2L, (long) snapshot.get("decode.integers"));
+        Assert.assertEquals(5L, (long) snapshot.get("decode.strings"));
+        Assert.assertEquals(2L, (long) snapshot.get("decode.lists"));
+        Assert.assertEquals(2L, (long) snapshot.get("decode.dicts"));
+        Assert.assertEquals(4L, (long) snapshot.get("decode.maxDepth"));
+
+        Assert.assertEquals(doc.length, BEncoder.encode(value).length());
+        BEncoder.encode(value, new ByteArrayOutputStream());
+        BEncoder.encode(value, ByteBuffer.allocate(doc.length));
+        Assert.assertEquals(3, registry.encodes());
+        Assert.assertEquals(3 * doc.length, registry.encodedBytes());
+
+        byte[] torrent = FileUtils.readFileToByteArray(FileUtils.toFile(getClass().getResource("/test.torrent")));
+        TorrentMeta meta = TorrentMeta.load(ByteBuffer.wrap(torrent));
+        snapshot = registry.snapshot();
+        Assert.assertEquals(1, registry.loads());
+        Assert.assertEquals(torrent.length, (long) snapshot.get("load.bytes"));
+        Assert.assertEquals(meta.info.pieces.count(), (long) snapshot.get("load.pieces"));
+        Assert.assertTrue(snapshot.get("load.infoBytes") > meta.info.pieces.count() * 20);
+        Assert.assertTrue(registry.hashNanos() > 0);
+
+        try {
+            new BDecoder("li1e").decode();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        try {
+            TorrentMeta.load(ByteBuffer.wrap("d8:announce3:urle".getBytes()));
+            Assert.fail();
+        } catch (IOException e) {
+            //expected
+        }
+        Assert.assertEquals(1, registry.failures(MetricsListener.Operation.DECODE, IllegalStateException.class));
+        Assert.assertEquals(1, registry.failures(MetricsListener.Operation.LOAD, IOException.class));
+        Assert.assertEquals(1L, (long) registry.snapshot().get("failures.load.java.io.IOException"));
+
+        Metrics.setListener(null);
+        new BDecoder(doc).decode();
+        Assert.assertEquals(1, registry.decodes());
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import wtf.cowbay.libraven.torrent.Bitfield;
+import wtf.cowbay.libraven.torrent.FileIndex;
+import wtf.cowbay.libraven.torrent.MerkleTree;
+import wtf.cowbay.libraven.torrent.PieceHashes;
+import wtf.cowbay.libraven.torrent.PieceVerifier;
+import wtf.cowbay.libraven.torrent.ResumeState;
+import wtf.cowbay.libraven.torrent.ResumeStore;
+import wtf.cowbay.libraven.torrent.TorrentBuilder;
+import wtf.cowbay.libraven.torrent.TorrentMeta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PieceVerifierChecker {
+    private static final int PIECE_LENGTH = 1024;
+    //piece 0 spans the first three files, the empty file sits on a piece boundary
+    private static final int[] SIZES = {100, 0, 2000, 1048, 0, 3333};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TorrentMeta createTorrent(File root) throws IOException {
+        File dir = new File(root, "content");
+        Random random = new Random(42);
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        List files = new ArrayList();
+
+        for (int i = 0; i < SIZES.length; i++) {
+            byte[] data = new byte[SIZES[i]];
+            random.nextBytes(data);
+            all.write(data);
+            FileUtils.writeByteArrayToFile(new File(dir, "sub/file" + i), data);
+
+            Map file = new TreeMap();
+            file.put("length", SIZES[i]);
+            file.put("path", Arrays.asList("sub", "file" + i));
+            files.add(file);
+        }
+
+        byte[] content = all.toByteArray();
+        ByteArrayOutputStream pieces = new ByteArrayOutputStream();
+        for (int off = 0; off < content.length; off += PIECE_LENGTH) {
+            pieces.write(DigestUtils.sha1(Arrays.copyOfRange(content, off, Math.min(content.length, off + PIECE_LENGTH))));
+        }
+
+        Map info = new TreeMap();
+        info.put("name", "content");
+        info.put("piece length", PIECE_LENGTH);
+        info.put("pieces", pieces.toByteArray());
+        info.put("files", files);
+
+        Map torrent = new TreeMap();
+        torrent.put("announce", "http://tracker.example.com/announce");
+        torrent.put("info", info);
+
+        return TorrentMeta.load(ByteBuffer.wrap(BEncoder.encode(torrent).value()));
+    }
+
+    @Test
+    public void checkVerify() throws IOException {
+        File root = folder.getRoot();
+        TorrentMeta meta = createTorrent(root);
+        Assert.assertEquals("sub/file2", meta.info.files.get(2).path);
+
+        final AtomicInteger calls = new AtomicInteger();
+        PieceVerifier verifier = new PieceVerifier(meta, root);
+        verifier.setThreads(3);
+        verifier.setListener(new PieceVerifier.Listener() {
+            public void pieceChecked(int piece, boolean valid, int checked, int total) {
+                calls.incrementAndGet();
+            }
+        });
+
+        Bitfield result = verifier.verify();
+        Assert.assertEquals(meta.info.pieces.count(), calls.get());
+        Assert.assertTrue(result.isComplete());
+
+        //corrupt a byte of piece 2, which spans file2 and file3
+        RandomAccessFile file = new RandomAccessFile(new File(root, "content/sub/file3"), "rw");
+        file.seek(10);
+        file.write(file.read() ^ 0xFF);
+        file.close();
+
+        result = verifier.verify();
+        Assert.assertFalse(result.get(2));
+        Assert.assertEquals(meta.info.pieces.count() - 1, result.cardinality());
+
+        //missing last file
+        Assert.assertTrue(new File(root, "content/sub/file5").delete());
+        result = new PieceVerifier(meta, root).verify();
+        Assert.assertTrue(result.get(0));
+        Assert.assertTrue(result.get(1));
+        Assert.assertFalse(result.get(3));
+        Assert.assertFalse(result.get(meta.info.pieces.count() - 1));
+    }
+
+    @Test
+    public void checkListenerFailure() throws IOException {
+        File root = folder.getRoot();
+        TorrentMeta meta = createTorrent(root);
+        PieceVerifier verifier = new PieceVerifier(meta, root);
+        verifier.setThreads(3);
+        verifier.setListener(new PieceVerifier.Listener() {
+            public void pieceChecked(int piece, boolean valid, int checked, int total) {
+                throw new IllegalStateException("listener " + piece);
+            }
+        });
+
+        //runtime failures of a worker come out as they are, not as IOExceptions
+        try {
+            verifier.verify();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().startsWith("listener"));
+        }
+    }
+
+    /**
+     * @return how many files under <code>dir</code> this process has open, or -1 if that can't be told
+     */
+    private static int openFiles(File dir) throws IOException {
+        File[] fds = new File("/proc/self/fd").listFiles();
+        if (fds == null) {
+            return -1;
+        }
+        int open = 0;
+        for (File fd : fds) {
+            try {
+                if (Files.readSymbolicLink(fd.toPath()).startsWith(dir.getCanonicalFile().toPath())) {
+                    open++;
+                }
+            } catch (IOException e) {
+                //closed meanwhile
+            }
+        }
+        return open;
+    }
+
+    @Test
+    public void checkNoOpenFiles() throws IOException {
+        final File root = folder.getRoot();
+        TorrentMeta meta = createTorrent(root);
+        if (openFiles(root) < 0) {
+            return;
+        }
+
+        //every piece is checked while the content is still mapped
+        final AtomicInteger open = new AtomicInteger();
+        PieceVerifier verifier = new PieceVerifier(meta, root);
+        verifier.setThreads(1);
+        verifier.setListener(new PieceVerifier.Listener() {
+            public void pieceChecked(int piece, boolean valid, int checked, int total) {
+                try {
+                    open.addAndGet(openFiles(root));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        Assert.assertTrue(verifier.verify().isComplete());
+        Assert.assertEquals(0, open.get());
+    }
+
+    @Test
+    public void checkFileIndex() throws IOException {
+        FileIndex index = new FileIndex(new long[]{100, 0, 2000, 1048, 0, 3333}, PIECE_LENGTH);
+        Assert.assertEquals(6481, index.totalLength());
+        Assert.assertEquals(7, index.pieceCount());
+        Assert.assertEquals(6481 - 6 * PIECE_LENGTH, index.pieceSize(6));
+
+        Assert.assertEquals(0, index.fileAt(99));
+        Assert.assertEquals(2, index.fileAt(100));
+        Assert.assertEquals(3, index.fileAt(2100));
+        Assert.assertEquals(5, index.fileAt(3148));
+        Assert.assertEquals(-1, index.fileAt(6481));
+
+        Assert.assertEquals(0, index.firstPiece(2));
+        Assert.assertEquals(2, index.lastPiece(2));
+        Assert.assertEquals(-1, index.firstPiece(4));
+
+        final List<long[]> spans = new ArrayList<long[]>();
+        FileIndex.SpanVisitor visitor = new FileIndex.SpanVisitor() {
+            public void span(int file, long fileOffset, long length) {
+                spans.add(new long[]{file, fileOffset, length});
+            }
+        };
+
+        Assert.assertEquals(2, index.forEachSpan(0, visitor));
+        Assert.assertArrayEquals(new long[]{0, 0, 100}, spans.get(0));
+        Assert.assertArrayEquals(new long[]{2, 0, 924}, spans.get(1));
+
+        spans.clear();
+        Assert.assertEquals(3, index.forEachSpan(2000, 3200, visitor));
+        Assert.assertArrayEquals(new long[]{2, 1900, 100}, spans.get(0));
+        Assert.assertArrayEquals(new long[]{3, 0, 1048}, spans.get(1));
+        Assert.assertArrayEquals(new long[]{5, 0, 52}, spans.get(2));
+    }
+
+    @Test
+    public void checkBitfield() {
+        Bitfield bits = new Bitfield(10);
+        bits.set(0);
+        bits.set(9);
+        Assert.assertArrayEquals(new byte[]{(byte) 0x80, 0x40}, bits.toByteArray());
+        bits.clear(0);
+        Assert.assertEquals(1, bits.cardinality());
+        Assert.assertTrue(bits.get(9));
+        Assert.assertFalse(bits.isComplete());
+    }
+
+    @Test
+    public void checkBuilder() throws IOException {
+        File root = folder.getRoot();
+        TorrentMeta expected = createTorrent(root);
+
+        TorrentBuilder builder = new TorrentBuilder(new File(root, "content"));
+        builder.addTracker("http://tracker.example.com/announce");
+        builder.setPieceLength(PIECE_LENGTH);
+        builder.setThreads(3);
+        TorrentBuilder.Result result = builder.build();
+
+        Assert.assertEquals(expected.infoHash, result.meta.infoHash);
+        Assert.assertEquals(TorrentMeta.load(result.encoded.asByteBuffer()).infoHash, result.meta.infoHash);
+        Assert.assertTrue(new PieceVerifier(result.meta, root).verify().isComplete());
+
+        //single file mode
+        builder = new TorrentBuilder(new File(root, "content/sub/file5"));
+        builder.addTracker("http://a.example.com/announce");
+        builder.addTracker("http://b.example.com/announce");
+        builder.setComment("single");
+        result = builder.build();
+        Assert.assertFalse(result.meta.info.isMultiFile);
+        Assert.assertEquals(16 * 1024, result.meta.info.piece_len);
+        Assert.assertEquals(SIZES[5], result.meta.info.files.get(0).length);
+        Assert.assertEquals("single", result.meta.comment);
+        Assert.assertEquals(Arrays.asList("http://a.example.com/announce", "http://a.example.com/announce", "http://b.example.com/announce"), result.meta.announces);
+        Assert.assertTrue(new PieceVerifier(result.meta, new File(root, "content/sub")).verify().isComplete());
+
+        //a link back to an ancestor is walked once
+        try {
+            Files.createSymbolicLink(new File(root, "content/sub/loop").toPath(), new File(root, "content").toPath());
+        } catch (UnsupportedOperationException e) {
+            return;
+        } catch (IOException e) {
+            return; //no symbolic links on this filesystem
+        }
+        builder = new TorrentBuilder(new File(root, "content"));
+        builder.addTracker("http://tracker.example.com/announce");
+        builder.setPieceLength(PIECE_LENGTH);
+        Assert.assertEquals(expected.infoHash, builder.build().meta.infoHash);
+    }
+
+    @Test
+    public void checkResume() throws IOException {
+        File root = folder.newFolder("data");
+        TorrentMeta meta = createTorrent(root);
+        int count = meta.info.pieces.count();
+        File resume = folder.newFolder("resume");
+        ResumeStore store = new ResumeStore(resume);
+
+        //new state: everything is re-hashed, and no descriptor is held while it's open
+        ResumeState state = store.open(meta, root);
+        Assert.assertTrue(openFiles(resume) <= 0);
+        Assert.assertEquals(0, state.bitfield().cardinality());
+        Assert.assertEquals(count, state.check(2));
+        Assert.assertTrue(state.bitfield().isComplete());
+        state.close();
+
+        //nothing changed
+        state = store.open(meta, root);
+        Assert.assertTrue(state.bitfield().isComplete());
+        Assert.assertEquals(0, state.check(2));
+        state.close();
+
+        //file3 covers pieces 2 and 3 only
+        File file3 = new File(root, "content/sub/file3");
+        RandomAccessFile file = new RandomAccessFile(file3, "rw");
+        file.seek(10);
+        file.write(file.read() ^ 0xFF);
+        file.close();
+        Assert.assertTrue(file3.setLastModified(file3.lastModified() + 10000));
+
+        state = store.open(meta, root);
+        Assert.assertEquals(2, state.check(2));
+        Assert.assertFalse(state.bitfield().get(2));
+        Assert.assertTrue(state.bitfield().get(3));
+        Assert.assertEquals(count - 1, state.bitfield().cardinality());
+
+        state.pieceCompleted(2);
+        state.close();
+        state = store.open(meta, root);
+        Assert.assertTrue(state.bitfield().isComplete());
+        state.close();
+        Assert.assertTrue(store.remove(meta.infoHash));
+    }
+
+    private static Map fileEntry(long length, byte[] root) {
+        Map entry = new TreeMap();
+        entry.put("length", length);
+        if (root != null) {
+            entry.put("pieces root", root);
+        }
+        Map file = new TreeMap();
+        file.put("", entry);
+        return file;
+    }
+
+    @Test
+    public void checkMerkleTree() throws IOException {
+        File dir = folder.newFolder("v2");
+        byte[] a = new byte[100000];
+        new Random(1).nextBytes(a);
+        FileUtils.writeByteArrayToFile(new File(dir, "dir/a.bin"), a);
+        FileUtils.writeByteArrayToFile(new File(dir, "b.bin"), Arrays.copyOf(a, MerkleTree.BLOCK_SIZE));
+        FileUtils.writeByteArrayToFile(new File(dir, "empty"), new byte[0]);
+
+        File[] files = {new File(dir, "b.bin"), new File(dir, "dir/a.bin"), new File(dir, "empty")};
+        MerkleTree[] trees = MerkleTree.of(files, 3);
+        MerkleTree tree = trees[1];
+        Assert.assertNull(trees[2]);
+        Assert.assertEquals(7, tree.blockCount());
+        Assert.assertEquals(3, tree.height());
+        Assert.assertArrayEquals(MerkleTree.of(ByteBuffer.wrap(a)).root(), tree.root());
+        Assert.assertArrayEquals(DigestUtils.sha256(Arrays.copyOf(a, MerkleTree.BLOCK_SIZE)), trees[0].root());
+
+        //a block checked against the root, and against its piece hash with a shorter proof
+        ByteBuffer block = ByteBuffer.wrap(a, 5 * MerkleTree.BLOCK_SIZE, MerkleTree.BLOCK_SIZE);
+        Assert.assertTrue(MerkleTree.verify(block, 5, tree.proof(5), tree.root()));
+        Assert.assertFalse(MerkleTree.verify(block, 4, tree.proof(5), tree.root()));
+        long pieceLength = 2 * MerkleTree.BLOCK_SIZE;
+        byte[] layer = tree.pieceLayer(pieceLength);
+        Assert.assertEquals(4 * MerkleTree.HASH_LENGTH, layer.length);
+        byte[] piece2 = Arrays.copyOfRange(layer, 2 * MerkleTree.HASH_LENGTH, 3 * MerkleTree.HASH_LENGTH);
+        Assert.assertTrue(MerkleTree.verify(block, 1, tree.proof(5, 1), piece2));
+        Assert.assertArrayEquals(tree.root(), MerkleTree.root(layer, 4, 1));
+
+        //last, short block
+        ByteBuffer last = ByteBuffer.wrap(a, 6 * MerkleTree.BLOCK_SIZE, a.length - 6 * MerkleTree.BLOCK_SIZE);
+        Assert.assertTrue(MerkleTree.verify(last, 6, tree.proof(6), tree.root()));
+        a[6 * MerkleTree.BLOCK_SIZE] ^= 1;
+        Assert.assertFalse(MerkleTree.verify(last, 6, tree.proof(6), tree.root()));
+
+        //v2 only torrent
+        Map sub = new TreeMap();
+        sub.put("a.bin", fileEntry(100000, tree.root()));
+        Map fileTree = new TreeMap();
+        fileTree.put("b.bin", fileEntry(MerkleTree.BLOCK_SIZE, trees[0].root()));
+        fileTree.put("dir", sub);
+        fileTree.put("empty", fileEntry(0, null));
+
+        Map info = new TreeMap();
+        info.put("name", "v2");
+        info.put("piece length", pieceLength);
+        info.put("meta version", 2);
+        info.put("file tree", fileTree);
+
+        Map torrent = new TreeMap();
+        torrent.put("announce", "http://tracker.example.com/announce");
+        torrent.put("info", info);
+
+        //piece layers, keyed by binary roots, is the last key
+        byte[] head = BEncoder.encode(torrent).value();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(head, 0, head.length - 1);
+        out.write("12:piece layersd32:".getBytes());
+        out.write(tree.root());
+        out.write((layer.length + ":").getBytes());
+        out.write(layer);
+        out.write("ee".getBytes());
+
+        TorrentMeta meta = TorrentMeta.load(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals(2, meta.info.metaVersion);
+        Assert.assertEquals(DigestUtils.sha256Hex(BEncoder.encode(info).value()), meta.infoHashV2);
+        Assert.assertTrue(meta.info.isMultiFile);
+        Assert.assertEquals(3, meta.info.files.size());
+        Assert.assertEquals("dir/a.bin", meta.info.files.get(1).path);
+        Assert.assertEquals(new ByteString(tree.root()), meta.info.files.get(1).piecesRoot);
+        Assert.assertNull(meta.info.files.get(2).piecesRoot);
+        Assert.assertEquals(0, meta.info.pieces.count());
+
+        PieceHashes layerHashes = meta.pieceLayers.get(meta.info.files.get(1).piecesRoot);
+        Assert.assertEquals(4, layerHashes.count());
+        Assert.assertArrayEquals(tree.root(), MerkleTree.root(layerHashes.bytes().value(), layerHashes.count(), 1));
+    }
+}
@@ -16,12 +16,33 @@
 
 package wtf.cowbay.libraven.bencode;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import wtf.cowbay.libraven.torrent.LazyTorrentMeta;
+import wtf.cowbay.libraven.torrent.MetadataAssembler;
+import wtf.cowbay.libraven.torrent.PieceHashes;
+import wtf.cowbay.libraven.torrent.PieceVerifier;
+import wtf.cowbay.libraven.torrent.TorrentCache;
+import wtf.cowbay.libraven.torrent.TorrentCatalog;
 import wtf.cowbay.libraven.torrent.TorrentMeta;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TorrentFileChecker {
     @Test
@@ -44,4 +65,344 @@ public class TorrentFileChecker {
     public void checkTorrentStream() throws IOException {
         TorrentMeta.load(getClass().getResourceAsStream("/test.torrent"));
     }
+
+    @Test
+    public void checkTorrentBuffer() throws IOException {
+        byte[] bytes = FileUtils.readFileToByteArray(FileUtils.toFile(getClass().getResource("/test.torrent")));
+        TorrentMeta expected = TorrentMeta.load(new ByteArrayInputStream(bytes));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        ByteBuffer[] buffers = {ByteBuffer.wrap(bytes), direct};
+        for (ByteBuffer buf : buffers) {
+            TorrentMeta torrent = TorrentMeta.load(buf);
+            Assert.assertEquals(expected.infoHash, torrent.infoHash);
+            Assert.assertEquals(expected.info.name, torrent.info.name);
+            Assert.assertEquals(expected.info.pieces.count(), torrent.info.pieces.count());
+            Assert.assertEquals(expected.info.pieces.hashAt(3), torrent.info.pieces.hashAt(3));
+            Assert.assertEquals(0, buf.position());
+        }
+    }
+
+    @Test
+    public void checkPieceHashes() throws IOException {
+        byte[] bytes = FileUtils.readFileToByteArray(FileUtils.toFile(getClass().getResource("/test.torrent")));
+        Map info = (Map) ((Map) new BDecoder(bytes).decode()).get("info");
+        ByteString raw = (ByteString) info.get("pieces");
+
+        PieceHashes[] all = {PieceHashes.copyOf(raw, 20), PieceHashes.copyOfDirect(raw, 20), TorrentMeta.load(ByteBuffer.wrap(bytes)).info.pieces};
+        for (PieceHashes pieces : all) {
+            Assert.assertEquals(raw.length() / 20, pieces.count());
+            Assert.assertEquals(raw, pieces.bytes());
+
+            int last = pieces.count() - 1;
+            byte[] hash = new byte[22];
+            pieces.hashAt(last, hash, 2);
+            Assert.assertEquals(raw.slice(last * 20, raw.length()), ByteString.wrap(hash, 2, 20));
+            Assert.assertTrue(pieces.matches(last, hash, 2));
+            Assert.assertTrue(pieces.matches(last, pieces.hashAt(last).value()));
+            Assert.assertFalse(pieces.matches(0, pieces.hashAt(last).value()));
+        }
+        Assert.assertEquals(all[0], all[1]);
+    }
+
+    @Test
+    public void checkLazyTorrent() throws IOException {
+        String fileName = FileUtils.toFile(getClass().getResource("/test.torrent")).getAbsolutePath();
+        TorrentMeta expected = TorrentMeta.loadFromFile(fileName);
+        LazyTorrentMeta lazy = LazyTorrentMeta.loadFromFile(fileName);
+
+        Assert.assertEquals(expected.infoHash, lazy.infoHash());
+        Assert.assertEquals(expected.info.name, lazy.name());
+        Assert.assertEquals(expected.info.piece_len, lazy.pieceLength());
+        Assert.assertEquals(expected.info.pieces, lazy.pieces());
+        Assert.assertEquals(expected.announces, lazy.announces());
+        Assert.assertEquals(expected.info.files.size(), lazy.files().size());
+        Assert.assertEquals(expected.info.files.get(0).length, lazy.files().get(0).length);
+
+        TorrentMeta converted = lazy.toTorrentMeta();
+        Assert.assertEquals(expected.infoHash, converted.infoHash);
+        Assert.assertEquals(expected.info.isPrivate, converted.info.isPrivate);
+    }
+
+    @Test
+    public void checkInfoHash() throws IOException {
+        Map map = (Map) new BDecoder(getClass().getResourceAsStream("/test.torrent")).decode();
+        String expected = DigestUtils.sha1Hex(BEncoder.encode(map.get("info")).value());
+
+        TorrentMeta torrent = TorrentMeta.load(getClass().getResourceAsStream("/test.torrent"));
+        Assert.assertEquals(expected, torrent.infoHash);
+    }
+
+    @Test
+    public void checkInfoHashKeepsRawBytes() throws IOException {
+        //keys out of order, re-encoding would sort them and change the hash
+        String info = "d6:lengthi10e4:name1:a12:piece lengthi16384e6:pieces20:aaaaaaaaaaaaaaaaaaaa1:xi1ee";
+        String unsorted = "d4:name1:a6:lengthi10e12:piece lengthi16384e6:pieces20:aaaaaaaaaaaaaaaaaaaa1:xi1ee";
+
+        TorrentMeta sorted = TorrentMeta.load(new ByteArrayInputStream(("d8:announce3:url4:info" + info + "e").getBytes()));
+        TorrentMeta raw = TorrentMeta.load(new ByteArrayInputStream(("d8:announce3:url4:info" + unsorted + "e").getBytes()));
+
+        Assert.assertEquals(DigestUtils.sha1Hex(info), sorted.infoHash);
+        Assert.assertEquals(DigestUtils.sha1Hex(unsorted), raw.infoHash);
+    }
+
+    private static Map<String, Object> torrent(String name, List<Object> files) {
+        Map<String, Object> info = new TreeMap<String, Object>();
+        info.put("name", name);
+        info.put("piece length", 16384);
+        info.put("pieces", new byte[20]);
+        if (files == null) {
+            info.put("length", 100);
+        } else {
+            info.put("files", files);
+        }
+        Map<String, Object> root = new TreeMap<String, Object>();
+        root.put("announce", "http://tracker.example.com/announce");
+        root.put("info", info);
+        return root;
+    }
+
+    private static Map<String, Object> file(String... path) {
+        Map<String, Object> file = new TreeMap<String, Object>();
+        file.put("length", 100);
+        file.put("path", Arrays.asList(path));
+        return file;
+    }
+
+    @Test
+    public void checkUnsafePaths() throws IOException {
+        List<Map<String, Object>> unsafe = new ArrayList<Map<String, Object>>();
+        unsafe.add(torrent("..", null));
+        unsafe.add(torrent("/etc/passwd", null));
+        unsafe.add(torrent("", null));
+        unsafe.add(torrent("dir", Arrays.<Object>asList(file("..", "..", "etc", "passwd"))));
+        unsafe.add(torrent("dir", Arrays.<Object>asList(file("a", "/etc/passwd"))));
+        unsafe.add(torrent("dir", Arrays.<Object>asList(file("a", ".", "b"))));
+        unsafe.add(torrent("dir", Arrays.<Object>asList(file("a\\..\\..\\b"))));
+        unsafe.add(torrent("dir", Arrays.<Object>asList(file())));
+
+        //v2 file tree with a ".." directory
+        Map<String, Object> leaf = new TreeMap<String, Object>();
+        leaf.put("length", 100);
+        Map<String, Object> entry = new TreeMap<String, Object>();
+        entry.put("", leaf);
+        Map<String, Object> tree = new TreeMap<String, Object>();
+        tree.put("passwd", entry);
+        Map<String, Object> parent = new TreeMap<String, Object>();
+        parent.put("..", tree);
+        Map<String, Object> v2 = torrent("dir", null);
+        Map<String, Object> v2Info = (Map<String, Object>) v2.get("info");
+        v2Info.remove("length");
+        v2Info.remove("pieces");
+        v2Info.put("meta version", 2);
+        v2Info.put("file tree", parent);
+        unsafe.add(v2);
+
+        for (Map<String, Object> torrent : unsafe) {
+            try {
+                TorrentMeta.load(BEncoder.encode(torrent).asByteBuffer());
+                Assert.fail(torrent.toString());
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage().startsWith("Invalid torrent file"));
+            }
+        }
+
+        try {
+            LazyTorrentMeta.load(BEncoder.encode(unsafe.get(0)).value()).name();
+            Assert.fail();
+        } catch (IOException e) {
+            //expected
+        }
+
+        //metadata built by hand is checked before any file is opened
+        TorrentMeta meta = TorrentMeta.load(BEncoder.encode(torrent("dir", Arrays.<Object>asList(file("a", "b")))).asByteBuffer());
+        meta.info.files.get(0).path = "../../etc/passwd";
+        try {
+            new PieceVerifier(meta, folder.getRoot()).verify();
+            Assert.fail();
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void checkOptionalFields() throws IOException {
+        TorrentMeta torrent = TorrentMeta.load(getClass().getResourceAsStream("/test.torrent"));
+        Assert.assertEquals("Torrent downloaded from torrent cache at http://zoink.it", torrent.comment);
+        Assert.assertEquals(1401235890L, torrent.created);
+        Assert.assertEquals("udp://tracker.ccc.de:80", torrent.announces.get(0));
+        Assert.assertFalse(torrent.info.isMultiFile);
+        Assert.assertEquals(163250250L, torrent.info.files.get(0).length);
+        Assert.assertEquals(torrent.info.name, torrent.info.files.get(0).path);
+
+        try {
+            TorrentMeta.load(new ByteArrayInputStream("d8:announce3:url4:infod4:name1:a12:piece lengthi1e6:pieces0:ee".getBytes()));
+            Assert.fail("Torrent without length should not be loaded");
+        } catch (IOException e) {
+            Assert.assertEquals("Invalid torrent file: length not existed", e.getMessage());
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void checkCatalog() throws IOException {
+        File source = FileUtils.toFile(getClass().getResource("/test.torrent"));
+        File root = folder.getRoot();
+        FileUtils.copyFile(source, new File(root, "a/b/test.torrent"));
+        FileUtils.copyFile(source, new File(root, "a/copy.torrent"));
+        FileUtils.writeStringToFile(new File(root, "broken.torrent"), "d4:infoe");
+        FileUtils.writeStringToFile(new File(root, "notes.txt"), "not a torrent");
+
+        String infoHash = TorrentMeta.loadFromFile(source.getPath()).infoHash;
+        TorrentCatalog catalog = TorrentCatalog.loadAll(root, 2);
+        Assert.assertEquals(1, catalog.size());
+        Assert.assertEquals(infoHash, catalog.get(infoHash).infoHash);
+        Assert.assertEquals(1, catalog.failures().size());
+        Assert.assertTrue(catalog.failures().containsKey(new File(root, "broken.torrent")));
+
+        //a link back to an ancestor is walked once
+        try {
+            Files.createSymbolicLink(new File(root, "a/b/loop").toPath(), root.toPath());
+        } catch (UnsupportedOperationException e) {
+            return;
+        } catch (IOException e) {
+            return; //no symbolic links on this filesystem
+        }
+        catalog = TorrentCatalog.loadAll(root, 2);
+        Assert.assertEquals(1, catalog.size());
+        Assert.assertEquals(1, catalog.failures().size());
+    }
+
+    private static TorrentMeta fakeTorrent(int id) {
+        TorrentMeta meta = new TorrentMeta();
+        meta.infoHash = String.format("%040x", id);
+        return meta;
+    }
+
+    @Test
+    public void checkCache() throws Exception {
+        final byte[] bytes = FileUtils.readFileToByteArray(FileUtils.toFile(getClass().getResource("/test.torrent")));
+        final TorrentMeta expected = TorrentMeta.load(ByteBuffer.wrap(bytes));
+        final ByteString key = new ByteString(expected.infoHash());
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final TorrentCache.Loader loader = new TorrentCache.Loader() {
+            public TorrentMeta load(ByteString infoHash) throws IOException {
+                loads.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                return TorrentMeta.load(ByteBuffer.wrap(bytes));
+            }
+        };
+
+        //concurrent misses load once
+        final TorrentCache cache = new TorrentCache(1 << 20);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<TorrentMeta>> results = new ArrayList<Future<TorrentMeta>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(new Callable<TorrentMeta>() {
+                public TorrentMeta call() throws IOException {
+                    return cache.get(key, loader);
+                }
+            }));
+        }
+        while (cache.missCount() < 4) { //every thread has missed before the load can finish
+            Thread.yield();
+        }
+        release.countDown();
+        for (Future<TorrentMeta> result : results) {
+            Assert.assertEquals(expected.infoHash, result.get().infoHash);
+        }
+        executor.shutdown();
+        Assert.assertEquals(1, loads.get());
+        long hits = cache.hitCount();
+        Assert.assertSame(cache.getIfPresent(key), cache.get(key, loader));
+        Assert.assertEquals(hits + 2, cache.hitCount());
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(TorrentCache.weigh(expected), cache.weight());
+
+        //a torrent the loader can't find isn't cached
+        final AtomicInteger lookups = new AtomicInteger();
+        TorrentCache.Loader notFound = new TorrentCache.Loader() {
+            public TorrentMeta load(ByteString infoHash) {
+                lookups.incrementAndGet();
+                return null;
+            }
+        };
+        ByteString unknown = new ByteString(new byte[20]);
+        Assert.assertNull(cache.get(unknown, notFound));
+        Assert.assertNull(cache.get(unknown, notFound));
+        Assert.assertEquals(2, lookups.get());
+        Assert.assertEquals(1, cache.size());
+
+        //a scan of one-off torrents doesn't evict a popular one
+        TorrentCache small = new TorrentCache(100 * TorrentCache.weigh(fakeTorrent(0)));
+        small.put(fakeTorrent(0));
+        ByteString hot = new ByteString(fakeTorrent(0).infoHash());
+        for (int i = 1; i <= 1000; i++) {
+            small.put(fakeTorrent(i));
+            Assert.assertNotNull(small.getIfPresent(hot));
+        }
+        Assert.assertTrue(small.size() <= 100);
+        Assert.assertTrue(small.weight() <= 100 * TorrentCache.weigh(fakeTorrent(0)));
+        Assert.assertTrue(small.evictionCount() >= 900);
+    }
+
+    @Test
+    public void checkMetadataAssembler() throws Exception {
+        byte[] pieces = new byte[2500 * 20];
+        new Random(7).nextBytes(pieces);
+        Map<String, Object> info = new TreeMap<String, Object>();
+        info.put("length", 2500L * 16384);
+        info.put("name", "large.bin");
+        info.put("piece length", 16384);
+        info.put("pieces", pieces);
+        Map<String, Object> root = new TreeMap<String, Object>();
+        root.put("announce", "udp://tracker.example.com:80");
+        root.put("info", info);
+        TorrentMeta expected = TorrentMeta.load(BEncoder.encode(root).asByteBuffer());
+        byte[] metadata = BEncoder.encode(info).value();
+
+        MetadataAssembler assembler = new MetadataAssembler(expected.infoHash(), metadata.length);
+        int blocks = assembler.blockCount();
+        Assert.assertTrue(blocks > 2);
+
+        //corrupted: detected once complete, then everything is discarded
+        for (int i = 0; i < blocks; i++) {
+            byte[] block = Arrays.copyOfRange(metadata, i * MetadataAssembler.BLOCK_SIZE, i * MetadataAssembler.BLOCK_SIZE + assembler.blockLength(i));
+            if (i == 1) {
+                block[0] ^= 1;
+            }
+            try {
+                assembler.add(i, block);
+                Assert.assertTrue(i < blocks - 1);
+            } catch (IOException e) {
+                Assert.assertEquals(blocks - 1, i);
+            }
+        }
+        Assert.assertFalse(assembler.isComplete());
+        Assert.assertEquals(0, assembler.nextMissing());
+
+        //out of order, with a duplicate
+        for (int i = blocks - 1; i >= 0; i--) {
+            ByteBuffer block = ByteBuffer.wrap(metadata, i * MetadataAssembler.BLOCK_SIZE, assembler.blockLength(i));
+            Assert.assertEquals(i == 0, assembler.add(i, block));
+            if (i == blocks - 1) {
+                Assert.assertFalse(assembler.add(i, block));
+                Assert.assertEquals(0, assembler.nextMissing());
+            }
+        }
+
+        TorrentMeta meta = assembler.toTorrentMeta(Arrays.asList("udp://tracker.example.com:80"));
+        Assert.assertEquals(expected.infoHash, meta.infoHash);
+        Assert.assertEquals(expected.info.name, meta.info.name);
+        Assert.assertEquals(expected.info.pieces, meta.info.pieces);
+        Assert.assertEquals(expected.info.files.get(0).length, meta.info.files.get(0).length);
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Julian Shen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wtf.cowbay.libraven.bencode;
+
+import org.junit.Assert;
+import org.junit.Test;
+import wtf.cowbay.libraven.compact.PeerList;
+import wtf.cowbay.libraven.tracker.AnnounceResponse;
+import wtf.cowbay.libraven.tracker.ScrapeParser;
+
+import java.io.IOException;
+import java.util.*;
+
+
+public class TrackerResponseChecker {
+    @Test
+    public void checkAnnounce() throws IOException {
+        byte[] peers = {10, 0, 0, 1, 0x1A, (byte) 0xE1, (byte) 192, (byte) 168, 1, 2, (byte) 0xC8, (byte) 0xD5};
+        byte[] peers6 = new byte[18];
+        peers6[15] = 1;
+        peers6[17] = 80;
+
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("interval", 1800);
+        map.put("min interval", 900);
+        map.put("complete", 12);
+        map.put("incomplete", 3);
+        map.put("peers", peers);
+        map.put("peers6", peers6);
+        map.put("external ip", new byte[]{1, 2, 3, 4});
+
+        AnnounceResponse response = new AnnounceResponse();
+        response.decode(BEncoder.encode(map).value());
+        Assert.assertFalse(response.isFailure());
+        Assert.assertEquals(1800, response.interval());
+        Assert.assertEquals(900, response.minInterval());
+        Assert.assertEquals(12, response.complete());
+        Assert.assertEquals(3, response.incomplete());
+        Assert.assertArrayEquals(peers, response.compactPeers().value());
+        Assert.assertEquals(2, response.peers().ipv4Count());
+        Assert.assertEquals("10.0.0.1:6881", PeerList.formatIPv4(response.peers().ipv4At(0)));
+        Assert.assertEquals("192.168.1.2:51413", PeerList.formatIPv4(response.peers().ipv4At(1)));
+        Assert.assertEquals(1, response.peers().ipv6Count());
+        Assert.assertEquals(80, response.peers().ipv6Port(0));
+
+        //reused for a response with the original peer dictionaries
+        List<Object> dicts = new ArrayList<Object>();
+        Map<String, Object> peer = new TreeMap<String, Object>();
+        peer.put("ip", "10.0.0.2");
+        peer.put("peer id", "-LR0001-000000000000");
+        peer.put("port", 6882);
+        dicts.add(peer);
+        peer = new TreeMap<String, Object>();
+        peer.put("ip", "tracker.example.com");
+        peer.put("port", 6883);
+        dicts.add(peer);
+        //literals only, and none of them goes to the resolver
+        String[] ips = {"999.1.1.1", "1.2.3", "zz:1", ":1", "1::2::3", "1:2:3:4:5:6:7:8:9", "12345::1",
+                "1:2:3:4:5:6:7::8", "::1.2.3.999", "::1", "[2001:DB8::a:1]", "::ffff:10.0.0.3", "1:2:3:4:5:6:1.2.3.4"};
+        for (String ip : ips) {
+            peer = new TreeMap<String, Object>();
+            peer.put("ip", ip);
+            peer.put("port", 80);
+            dicts.add(peer);
+        }
+        map = new TreeMap<String, Object>();
+        map.put("interval", 60);
+        map.put("peers", dicts);
+
+        response.decode(BEncoder.encode(map).asByteBuffer());
+        Assert.assertEquals(60, response.interval());
+        Assert.assertEquals(-1, response.complete());
+        Assert.assertNull(response.compactPeers());
+        Assert.assertEquals(5, response.peers().size());
+        Assert.assertEquals("10.0.0.2:6882", PeerList.formatIPv4(response.peers().ipv4At(0)));
+        Assert.assertEquals("10.0.0.3:80", PeerList.formatIPv4(response.peers().ipv4At(1)));
+        byte[] address = new byte[16];
+        response.peers().ipv6Address(0, address, 0);
+        Assert.assertArrayEquals(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1}, address);
+        response.peers().ipv6Address(1, address, 0);
+        Assert.assertArrayEquals(new byte[]{0x20, 0x01, 0x0D, (byte) 0xB8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x0A, 0, 1}, address);
+        response.peers().ipv6Address(2, address, 0);
+        Assert.assertArrayEquals(new byte[]{0, 1, 0, 2, 0, 3, 0, 4, 0, 5, 0, 6, 1, 2, 3, 4}, address);
+        Assert.assertEquals(80, response.peers().ipv6Port(2));
+
+        response.decode("d14:failure reason9:not founde".getBytes());
+        Assert.assertTrue(response.isFailure());
+        Assert.assertEquals("not found", response.failureReason());
+        Assert.assertEquals(0, response.peers().size());
+    }
+
+    @Test
+    public void checkScrape() throws IOException {
+        final List<String> visited = new ArrayList<String>();
+        ScrapeParser parser = new ScrapeParser();
+        ScrapeParser.Visitor visitor = new ScrapeParser.Visitor() {
+            public void file(byte[] infoHash, int complete, int downloaded, int incomplete) {
+                visited.add(infoHash[0] + ":" + complete + "," + downloaded + "," + incomplete);
+            }
+        };
+
+        String response = "d5:filesd"
+                + "20:aaaaaaaaaaaaaaaaaaaad8:completei5e10:downloadedi50e10:incompletei10e4:name1:ae"
+                + "20:bbbbbbbbbbbbbbbbbbbbd8:completei1ee"
+                + "ee";
+        Assert.assertEquals(2, parser.parse(response.getBytes(), visitor));
+        Assert.assertEquals(Arrays.asList("97:5,50,10", "98:1,-1,-1"), visited);
+        Assert.assertNull(parser.failureReason());
+
+        Assert.assertEquals(0, parser.parse("d14:failure reason4:downe".getBytes(), visitor));
+        Assert.assertEquals("down", parser.failureReason());
+
+        try {
+            parser.parse("d5:filesd3:abcdeee".getBytes(), visitor);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+    }
+}